@@ -0,0 +1,52 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode.benchmarks;
+
+import net.rpgtoolkit.blade.ir.CompilationUnit;
+import net.rpgtoolkit.rpgcode.Lexer;
+import net.rpgtoolkit.rpgcode.Parser;
+import net.rpgtoolkit.rpgcode.ProgramGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures allocation per kilobyte of source. Run with the GC profiler
+ * ({@code -prof gc}) and read {@code gc.alloc.rate.norm}: each invocation
+ * parses a program of {@link #KILOBYTES} kilobytes and counts as that many
+ * operations, so the normalized rate is in bytes per kilobyte parsed. The
+ * generator overshoots its size by at most one top-level element,
+ * which is a few percent at this size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AllocationBenchmark {
+
+  public static final int KILOBYTES = 64;
+
+  @Param({"MIXED", "EXPRESSIONS", "FUNCTIONS", "CLASSES", "COMMENTS"})
+  public ProgramGenerator.Shape shape;
+
+  private String source;
+
+  @Setup
+  public void setup() {
+    source = new ProgramGenerator(ProgramGenerator.DEFAULT_SEED, shape).generate(KILOBYTES * 1024);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(KILOBYTES)
+  public CompilationUnit parse() {
+    return new Parser(new Lexer(source)).parse();
+  }
+
+}
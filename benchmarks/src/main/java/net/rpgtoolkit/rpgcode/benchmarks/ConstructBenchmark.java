@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode.benchmarks;
+
+import net.rpgtoolkit.blade.ir.CompilationUnit;
+import net.rpgtoolkit.rpgcode.Lexer;
+import net.rpgtoolkit.rpgcode.Parser;
+import net.rpgtoolkit.rpgcode.ProgramGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to parse programs dominated by a single construct, so
+ * a regression can be traced to the part of the grammar that caused it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConstructBenchmark {
+
+  @Param({"EXPRESSIONS", "FUNCTIONS", "CLASSES", "COMMENTS"})
+  public ProgramGenerator.Shape shape;
+
+  @Param({"262144"})
+  public int size;
+
+  private String source;
+
+  @Setup
+  public void setup() {
+    source = new ProgramGenerator(ProgramGenerator.DEFAULT_SEED, shape).generate(size);
+  }
+
+  @Benchmark
+  public CompilationUnit parse() {
+    return new Parser(new Lexer(source)).parse();
+  }
+
+}
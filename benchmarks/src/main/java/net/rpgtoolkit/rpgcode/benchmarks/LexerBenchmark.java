@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode.benchmarks;
+
+import net.rpgtoolkit.rpgcode.Lexer;
+import net.rpgtoolkit.rpgcode.ProgramGenerator;
+import net.rpgtoolkit.rpgcode.Token;
+import net.rpgtoolkit.rpgcode.TokenKind;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures raw lexer throughput in tokens per second over a generated
+ * program.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LexerBenchmark {
+
+  /**
+   * Counts the tokens scanned, which JMH reports as a rate next to the
+   * rate of whole scans.
+   */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+
+    public long tokens;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      tokens = 0;
+    }
+
+  }
+
+  @Param({"MIXED", "COMMENTS"})
+  public ProgramGenerator.Shape shape;
+
+  @Param({"1048576"})
+  public int size;
+
+  private String source;
+  private Token token;
+
+  @Setup
+  public void setup() {
+    source = new ProgramGenerator(ProgramGenerator.DEFAULT_SEED, shape).generate(size);
+    token = new Token();
+  }
+
+  @Benchmark
+  public int scan(Counters counters) {
+    final Lexer lexer = new Lexer(source);
+    int count = 1;
+    while (lexer.scan(token).kind != TokenKind.END) {
+      count++;
+    }
+    counters.tokens += count;
+    return count;
+  }
+
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode.benchmarks;
+
+import net.rpgtoolkit.rpgcode.Lexer;
+import net.rpgtoolkit.rpgcode.ProgramGenerator;
+import net.rpgtoolkit.rpgcode.Token;
+import net.rpgtoolkit.rpgcode.TokenKind;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of constructing a lexer and scanning a short input,
+ * which dominates when many small scripts or single lines are lexed, for
+ * example by an editor.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LexerConstructionBenchmark {
+
+  @Param({"1", "10", "1000"})
+  public int lines;
+
+  private String source;
+  private Token token;
+
+  @Setup
+  public void setup() {
+    source = new ProgramGenerator().lines(lines);
+    token = new Token();
+  }
+
+  @Benchmark
+  public int constructAndScan() {
+    final Lexer lexer = new Lexer(source);
+    int count = 1;
+    while (lexer.scan(token).kind != TokenKind.END) {
+      count++;
+    }
+    return count;
+  }
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode.benchmarks;
+
+import net.rpgtoolkit.blade.ir.CompilationUnit;
+import net.rpgtoolkit.rpgcode.FlatTree;
+import net.rpgtoolkit.rpgcode.Lexer;
+import net.rpgtoolkit.rpgcode.Parser;
+import net.rpgtoolkit.rpgcode.ProgramGenerator;
+import net.rpgtoolkit.rpgcode.UnitReader;
+import net.rpgtoolkit.rpgcode.UnitWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares parsing a program with loading it pre-parsed, both as a
+ * compilation unit and as a flat tree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoadBenchmark {
+
+  @Param({"MIXED", "FUNCTIONS", "CLASSES"})
+  public ProgramGenerator.Shape shape;
+
+  @Param({"262144"})
+  public int size;
+
+  private String source;
+  private ByteBuffer encoded;
+
+  @Setup
+  public void setup() {
+    source = new ProgramGenerator(ProgramGenerator.DEFAULT_SEED, shape).generate(size);
+    final Lexer lexer = new Lexer(source);
+    final CompilationUnit unit = new Parser(lexer).parse();
+    final byte[] bytes = UnitWriter.encode(unit, lexer.getLineMap());
+    encoded = ByteBuffer.allocateDirect(bytes.length);
+    encoded.put(bytes);
+  }
+
+  @Benchmark
+  public CompilationUnit parse() {
+    return new Parser(new Lexer(source)).parse();
+  }
+
+  @Benchmark
+  public CompilationUnit load() throws IOException {
+    encoded.clear();
+    return new UnitReader(encoded).read();
+  }
+
+  @Benchmark
+  public FlatTree loadTree() throws IOException {
+    encoded.clear();
+    return new UnitReader(encoded).readTree();
+  }
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode.benchmarks;
+
+import net.rpgtoolkit.blade.ir.CompilationUnit;
+import net.rpgtoolkit.rpgcode.Lexer;
+import net.rpgtoolkit.rpgcode.Parser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares parse time and allocation of the ring buffer lookahead
+ * (f90ca85) with the linked list it replaced (its parent, 9225c1b).
+ *
+ * Neither commit has this module, and the baseline lacks the program
+ * generator, so the benchmark only uses {@code new Parser(new Lexer(source)).parse()}
+ * and generates its own input. Build the benchmarks jar from this tree
+ * once, then put the parser of each commit in front of it, so that its
+ * classes shadow the ones bundled in the jar:
+ *
+ * <pre>
+ * mvn -f benchmarks/pom.xml package
+ * git worktree add ../lookahead-before 9225c1b
+ * git worktree add ../lookahead-after f90ca85
+ * mvn -f ../lookahead-before/parser/pom.xml package -DskipTests
+ * mvn -f ../lookahead-after/parser/pom.xml package -DskipTests
+ * java -cp ../lookahead-before/parser/target/rpgcode-parser-4.0.0-SNAPSHOT.jar:benchmarks/target/benchmarks.jar \
+ *     org.openjdk.jmh.Main LookaheadBenchmark -prof gc -f 3 -wi 8 -i 10 -jvmArgs "-Xms2g -Xmx2g"
+ * </pre>
+ *
+ * and the same with {@code lookahead-after}. Compare the average time
+ * and {@code gc.alloc.rate.norm}, the bytes allocated per parse.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LookaheadBenchmark {
+
+  private static final String[] OPERATORS = {
+      "+", "-", "*", "/", "%", "<<", ">>", "==", "!=", "<", ">=", "&&", "||"
+  };
+
+  /**
+   * MIXED: functions of assignments, calls, conditionals and loops, with
+   * comments. EXPRESSIONS: long expressions assigned at the top level.
+   */
+  @Param({"MIXED", "EXPRESSIONS"})
+  public String input;
+
+  @Param({"1048576"})
+  public int size;
+
+  private String source;
+
+  @Setup
+  public void setup() {
+    final Random random = new Random(1);
+    final StringBuilder out = new StringBuilder(size + 1024);
+    int serial = 0;
+    while (out.length() < size) {
+      if (input.equals("EXPRESSIONS")) {
+        out.append("x").append(serial++ % 64).append(" = ")
+            .append(expression(random, 16)).append('\n');
+        continue;
+      }
+      out.append("// function ").append(serial).append('\n');
+      out.append("function f").append(serial++).append("(a, b) {\n");
+      for (int i = 0; i < 16; i++) {
+        switch (random.nextInt(4)) {
+          case 0:
+            out.append("  if (").append(expression(random, 2)).append(") {\n")
+                .append("    a = ").append(expression(random, 2)).append("\n  }\n");
+            break;
+          case 1:
+            out.append("  while (").append(expression(random, 1)).append(") {\n")
+                .append("    b = b - 1\n  }\n");
+            break;
+          case 2:
+            out.append("  g(").append(expression(random, 1)).append(", b)\n");
+            break;
+          default:
+            out.append("  a = ").append(expression(random, 3)).append('\n');
+            break;
+        }
+      }
+      out.append("  return a\n}\n");
+    }
+    source = out.toString();
+  }
+
+  @Benchmark
+  public CompilationUnit parse() {
+    return new Parser(new Lexer(source)).parse();
+  }
+
+  private static String expression(Random random, int depth) {
+    if (depth == 0) {
+      return random.nextBoolean()
+          ? "v" + random.nextInt(16)
+          : Integer.toString(random.nextInt(1000));
+    }
+    final String lhs = expression(random, depth - 1);
+    final String rhs = expression(random, random.nextInt(depth));
+    final String op = OPERATORS[random.nextInt(OPERATORS.length)];
+    return random.nextInt(4) == 0
+        ? "(" + lhs + " " + op + " " + rhs + ")"
+        : lhs + " " + op + " " + rhs;
+  }
+
+}
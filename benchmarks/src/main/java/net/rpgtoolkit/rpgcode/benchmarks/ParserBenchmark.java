@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode.benchmarks;
+
+import net.rpgtoolkit.blade.ir.CompilationUnit;
+import net.rpgtoolkit.rpgcode.Lexer;
+import net.rpgtoolkit.rpgcode.Parser;
+import net.rpgtoolkit.rpgcode.ProgramGenerator;
+import net.rpgtoolkit.rpgcode.Trivia;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parser throughput in megabytes of source per second, lexing
+ * included, over a generated program. With {@code trivia} set, comments
+ * and blank lines are routed to a side table by the lexer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+
+  /**
+   * Counts the megabytes of source parsed, which JMH reports as a rate
+   * next to the rate of whole parses.
+   */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+
+    public double megabytes;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      megabytes = 0;
+    }
+
+  }
+
+  @Param({"MIXED", "COMMENTS"})
+  public ProgramGenerator.Shape shape;
+
+  @Param({"1048576"})
+  public int size;
+
+  @Param({"false", "true"})
+  public boolean trivia;
+
+  private String source;
+
+  @Setup
+  public void setup() {
+    source = new ProgramGenerator(ProgramGenerator.DEFAULT_SEED, shape).generate(size);
+  }
+
+  @Benchmark
+  public CompilationUnit parse(Counters counters) {
+    final Lexer lexer = new Lexer(source);
+    if (trivia) {
+      lexer.setTrivia(new Trivia());
+    }
+    final Parser parser = new Parser(lexer);
+    final CompilationUnit unit = parser.parse();
+    counters.megabytes += source.length() / (1024.0 * 1024.0);
+    return unit;
+  }
+
+}
@@ -0,0 +1,454 @@
+package net.rpgtoolkit.rpgcode;
+
+import net.rpgtoolkit.blade.ir.CompilationUnit;
+
+import java.io.*;
+import java.nio.CharBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+
+public class Driver {
+
+    public static class ProgramFilenameFilter implements FilenameFilter {
+
+        @Override
+        public boolean accept(File file, String s) {
+            return s.endsWith(".prg");
+        }
+
+    }
+
+    public static class MonitorParserListener implements ParserListener {
+
+        private boolean success = true;
+        private int errors = 0;
+        private final List<ParseError> reported = new ArrayList<>();
+
+        @Override
+        public void error(ParseError error) {
+            success = false;
+            errors++;
+            reported.add(error);
+        }
+
+    }
+
+    private static final long CACHE_CAPACITY = 256L * 1024 * 1024;
+
+    // options the lexer is configured with in parse(), part of the cache key
+
+    private static final int LEXER_OPTIONS = ParseCache.TRIVIA | ParseCache.LEGACY_COMMENTS;
+
+    private static volatile ParseCache cache;
+
+    public static class ParseResult {
+
+        private final File file;
+        private final boolean success;
+        private final int errors;
+        private final long duration;
+
+        public ParseResult(File file, boolean success, int errors, long duration) {
+            this.file = file;
+            this.success = success;
+            this.errors = errors;
+            this.duration = duration;
+        }
+
+        public File getFile() {
+            return this.file;
+        }
+
+        public boolean isSuccess() {
+            return this.success;
+        }
+
+        public int getErrors() {
+            return this.errors;
+        }
+
+        /**
+         * @return time spent reading and parsing the file, in nanoseconds
+         */
+        public long getDuration() {
+            return this.duration;
+        }
+
+    }
+
+    /**
+     * Parses a range of files, splitting the range in halves so that idle
+     * workers can steal the other half. Each result is written to the slot
+     * matching its file, which keeps the merged output independent of
+     * scheduling.
+     */
+    public static class ParseTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File[] files;
+        private final ParseResult[] results;
+        private final int from;
+        private final int to;
+
+        public ParseTask(File[] files, ParseResult[] results, int from, int to) {
+            this.files = files;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                for (int i = from; i < to; i++)
+                    results[i] = parse(files[i]);
+            } else {
+                final int mid = (from + to) >>> 1;
+                invokeAll(
+                        new ParseTask(files, results, from, mid),
+                        new ParseTask(files, results, mid, to));
+            }
+        }
+
+    }
+
+    /**
+     * Running totals over a set of parse results. Safe to update from
+     * multiple workers.
+     */
+    public static class ParseSummary {
+
+        private int count;
+        private int total;
+        private long time;
+
+        public synchronized void add(ParseResult result) {
+            total++;
+            time += result.getDuration();
+            if (result.isSuccess())
+                count++;
+            else
+                System.err.println(String.format("failed: %s (%d errors)",
+                        result.getFile().getPath(), result.getErrors()));
+        }
+
+        public synchronized void print(long duration, int parallelism) {
+
+            int failed = total - count;
+
+            System.out.println("done");
+            System.out.println(String.format("coverage: %.02f%% (%d/%d)",
+                    percent(count, total), count, total));
+            System.out.println(String.format("failed: %.02f%% (%d)",
+                    percent(failed, total), failed));
+            System.out.println(String.format("parsed in %s ms (%d ms across %d threads)",
+                    duration, time / 1000000, Math.max(parallelism, 1)));
+
+            final ParseCache current = cache;
+
+            if (current != null) {
+                long hits = current.getHits();
+                long lookups = hits + current.getMisses();
+                System.out.println(String.format("cache: %.02f%% hits (%d/%d)",
+                        percent(hits, lookups), hits, lookups));
+            }
+
+        }
+
+        /**
+         * @return part as a percentage of whole, or zero if whole is zero
+         */
+        private static float percent(long part, long whole) {
+            return whole > 0 ? part / (float) whole * 100 : 0;
+        }
+
+    }
+
+    /**
+     * Walks a game tree, handing each program file to the pool as soon as
+     * it is found. At most a fixed number of files are queued or in flight
+     * at once; the walk blocks until a worker frees a slot, so memory use
+     * does not grow with the size of the tree.
+     */
+    public static class ProjectWalker extends SimpleFileVisitor<Path> {
+
+        private final ForkJoinPool pool;
+        private final Semaphore slots;
+        private final ParseSummary summary;
+
+        public ProjectWalker(ForkJoinPool pool, int capacity, ParseSummary summary) {
+            this.pool = pool;
+            this.slots = new Semaphore(capacity);
+            this.summary = summary;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+
+            if (!attrs.isRegularFile() || !path.getFileName().toString().endsWith(".prg"))
+                return FileVisitResult.CONTINUE;
+
+            final File file = path.toFile();
+
+            if (pool == null) {
+                summary.add(parse(file));
+                return FileVisitResult.CONTINUE;
+            }
+
+            slots.acquireUninterruptibly();
+
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        summary.add(parse(file));
+                    }
+                    finally {
+                        slots.release();
+                    }
+                }
+            });
+
+            return FileVisitResult.CONTINUE;
+
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path path, IOException ex) {
+            System.err.println(
+                    String.format("unable to read %s: %s", path, ex.getMessage()));
+            return FileVisitResult.CONTINUE;
+        }
+
+        /**
+         * Blocks until every submitted file has been parsed.
+         */
+        public void await(int capacity) {
+            slots.acquireUninterruptibly(capacity);
+            slots.release(capacity);
+        }
+
+    }
+
+    /**
+     * Recursively parses every program file below a directory, streaming
+     * files into a bounded pipeline of workers.
+     *
+     * @param path root of the game tree
+     * @param parallelism number of worker threads
+     */
+    public static void parseProject(String path, int parallelism) {
+
+        final Path root = Paths.get(path);
+
+        if (!Files.isDirectory(root))
+            return;
+
+        System.out.println(
+                String.format("parsing files below \"%s\"", root.toAbsolutePath()));
+
+        final ParseSummary summary = new ParseSummary();
+        final ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        final int capacity = Math.max(parallelism, 1) * 4;
+        final ProjectWalker walker = new ProjectWalker(pool, capacity, summary);
+
+        long start = System.currentTimeMillis();
+
+        try {
+            Files.walkFileTree(root, walker);
+            walker.await(capacity);
+        }
+        catch (IOException ex) {
+            System.err.println(
+                    String.format("unable to walk %s: %s", root, ex.getMessage()));
+        }
+        finally {
+            if (pool != null)
+                pool.shutdown();
+        }
+
+        summary.print(System.currentTimeMillis() - start, parallelism);
+
+    }
+
+    public static void parseDirectory(String path) {
+
+        parseDirectory(path, 1);
+
+    }
+
+    public static void parseDirectory(String path, int parallelism) {
+
+        final File dir = new File(path);
+        final FilenameFilter filter = new ProgramFilenameFilter();
+
+        if (!dir.isDirectory())
+            return;
+
+        System.out.println(
+                String.format("parsing files in \"%s\"", dir.getAbsolutePath()));
+
+        final File[] files = dir.listFiles(filter);
+        final ParseResult[] results = new ParseResult[files.length];
+
+        Arrays.sort(files);
+
+        long start = System.currentTimeMillis();
+
+        if (parallelism > 1) {
+            final ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new ParseTask(files, results, 0, files.length));
+            }
+            finally {
+                pool.shutdown();
+            }
+        } else {
+            for (int i = 0; i < files.length; i++)
+                results[i] = parse(files[i]);
+        }
+
+        long duration = System.currentTimeMillis() - start;
+
+        final ParseSummary summary = new ParseSummary();
+
+        for (final ParseResult result : results)
+            summary.add(result);
+
+        summary.print(duration, parallelism);
+
+    }
+
+    public static boolean parseFile(File file) {
+
+        return parse(file).isSuccess();
+
+    }
+
+    public static ParseResult parse(File file) {
+
+        final long start = System.nanoTime();
+        final ParseCache cache = Driver.cache;
+
+        if (cache != null) {
+            final ParseCache.Entry entry = cache.get(file, LEXER_OPTIONS);
+            if (entry != null)
+                return new ParseResult(file, entry.isSuccess(),
+                        entry.getErrors().size(), System.nanoTime() - start);
+        }
+
+        final CharBuffer input;
+
+        try {
+            input = SourceReader.read(file);
+        }
+        catch (IOException ex) {
+            System.err.println(
+                    String.format("unable to read %s: %s", file.getName(), ex.getMessage()));
+            return new ParseResult(file, false, 0, System.nanoTime() - start);
+        }
+
+        final long hash = cache != null ? ParseCache.hash(input, LEXER_OPTIONS) : 0;
+
+        if (cache != null) {
+            final ParseCache.Entry entry = cache.get(file, hash, LEXER_OPTIONS);
+            if (entry != null)
+                return new ParseResult(file, entry.isSuccess(),
+                        entry.getErrors().size(), System.nanoTime() - start);
+        }
+
+        final Lexer lexer = Lexer.adopt(input);
+
+        // comments and blank lines are of no use here, keep them out of
+        // the parser's lookahead. imported 2.x programs use asterisk
+        // comments
+
+        lexer.setTrivia(new Trivia());
+        lexer.setLegacyComments(true);
+
+        assert ParseCache.options(lexer) == LEXER_OPTIONS;
+
+        final Parser parser = new Parser(lexer);
+        final MonitorParserListener listener = new MonitorParserListener();
+
+        parser.addListener(listener);
+
+        CompilationUnit unit = null;
+
+        try {
+            unit = parser.parse();
+            if (unit == null)
+                listener.success = false;
+        }
+        catch (Exception ex) {
+            System.err.println(
+                    String.format("exception: %s: %s", file.getName(), ex.getMessage()));
+            parser.removeListener(listener);
+            return new ParseResult(file, false, listener.errors, System.nanoTime() - start);
+        }
+
+        parser.removeListener(listener);
+
+        // only the outcome is reported, so the unit itself is not cached
+
+        if (cache != null)
+            cache.put(file, hash, LEXER_OPTIONS,
+                    new ParseCache.Entry(listener.success, listener.reported, null));
+
+        return new ParseResult(
+                file, listener.success, listener.errors, System.nanoTime() - start);
+
+    }
+
+
+    public static void main(String[] args) {
+
+        int arg = 0;
+
+        if (args.length > 1 && args[0].equals("-cache")) {
+            try {
+                cache = new ParseCache(new File(args[1]), CACHE_CAPACITY);
+            }
+            catch (IOException ex) {
+                System.err.println(
+                        String.format("unable to open cache: %s", ex.getMessage()));
+            }
+            arg = 2;
+        }
+
+        if (args.length <= arg) {
+            System.err.println("usage: Driver [-cache <dir>] <path> [parallelism]");
+            return;
+        }
+
+        final String path = args[arg];
+        final int parallelism = args.length > arg + 1
+                ? Integer.parseInt(args[arg + 1])
+                : Runtime.getRuntime().availableProcessors();
+
+        parseProject(path, parallelism);
+
+        if (cache != null) {
+            try {
+                cache.save();
+            }
+            catch (IOException ex) {
+                System.err.println(
+                        String.format("unable to save cache: %s", ex.getMessage()));
+            }
+        }
+
+    }
+
+}
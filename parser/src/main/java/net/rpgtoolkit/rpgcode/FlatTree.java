@@ -0,0 +1,951 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import net.rpgtoolkit.blade.ir.Block;
+import net.rpgtoolkit.blade.ir.ClassDeclaration;
+import net.rpgtoolkit.blade.ir.ClassFieldDeclaration;
+import net.rpgtoolkit.blade.ir.CompilationUnit;
+import net.rpgtoolkit.blade.ir.Expression;
+import net.rpgtoolkit.blade.ir.FunctionDeclaration;
+import net.rpgtoolkit.blade.ir.Identifier;
+import net.rpgtoolkit.blade.ir.Node;
+import net.rpgtoolkit.blade.ir.Parameter;
+import net.rpgtoolkit.blade.ir.SourceLocation;
+import net.rpgtoolkit.blade.ir.SourceRange;
+import net.rpgtoolkit.blade.ir.Statement;
+import net.rpgtoolkit.blade.ir.Visibility;
+import net.rpgtoolkit.blade.ir.expressions.*;
+import net.rpgtoolkit.blade.ir.statements.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A syntax tree stored as parallel primitive arrays instead of one object
+ * per node. Each node has a kind and a small tag, the offsets of its start
+ * and end, a payload and links to its first child and next sibling. Names
+ * and string values are kept once each in a side table.
+ *
+ * Nodes are stored in pre-order, the root at index zero, so a pass that
+ * does not need the shape of the tree can simply scan the indices, and
+ * every child comes after its parent. The {@link Cursor} walks the tree by
+ * its links. Source lines and columns are not stored; they are found
+ * through the line map of the source when needed.
+ *
+ * A tree is converted from and to a {@link CompilationUnit} without
+ * recursion, so deeply nested expressions are no problem.
+ *
+ * Not thread-safe.
+ */
+public class FlatTree {
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  // node kind ordinal is stored in the low bits of the kind array,
+  // the tag in the remaining high bits
+
+  private static final int KIND_BITS = 8;
+  private static final int KIND_MASK = (1 << KIND_BITS) - 1;
+  private static final NodeKind[] KINDS = NodeKind.values();
+
+  // function and field tags hold the visibility ordinal plus one, zero
+  // meaning none, and the function flags above it
+
+  private static final int VISIBILITY_MASK = 3;
+  private static final int INLINE = 4;
+  private static final int ABSTRACT = 8;
+
+  private static final Visibility[] VISIBILITIES = Visibility.values();
+
+  // number of children of each kind; -1 - n for kinds with at least n
+
+  private static final int[] ARITIES = arities();
+
+  // values() copies its array on every call, so the tags of rebuilt nodes
+  // are mapped through these
+
+  private static final LoopStatement.LoopKind[] LOOP_KINDS =
+      LoopStatement.LoopKind.values();
+  private static final FlowControlStatement.FlowControlKind[] FLOW_CONTROL_KINDS =
+      FlowControlStatement.FlowControlKind.values();
+  private static final ErrorHandlerStatement.ErrorHandlerKind[] ERROR_HANDLER_KINDS =
+      ErrorHandlerStatement.ErrorHandlerKind.values();
+  private static final AssignmentExpression.Operator[] ASSIGNMENT_OPERATORS =
+      AssignmentExpression.Operator.values();
+  private static final LogicalBinaryExpression.Operator[] LOGICAL_OPERATORS =
+      LogicalBinaryExpression.Operator.values();
+  private static final RelationalBinaryExpression.Operator[] RELATIONAL_OPERATORS =
+      RelationalBinaryExpression.Operator.values();
+  private static final ShiftBinaryExpression.Operator[] SHIFT_OPERATORS =
+      ShiftBinaryExpression.Operator.values();
+  private static final AdditiveBinaryExpression.Operator[] ADDITIVE_OPERATORS =
+      AdditiveBinaryExpression.Operator.values();
+  private static final MultiplicativeBinaryExpression.Operator[] MULTIPLICATIVE_OPERATORS =
+      MultiplicativeBinaryExpression.Operator.values();
+  private static final UnaryExpression.Operator[] UNARY_OPERATORS =
+      UnaryExpression.Operator.values();
+  private static final PostfixExpression.Operator[] POSTFIX_OPERATORS =
+      PostfixExpression.Operator.values();
+
+  /**
+   * Walks a tree along its child and sibling links, remembering the path
+   * back to the root.
+   */
+  public class Cursor {
+
+    private int node;
+    private int[] path;
+    private int depth;
+
+    private Cursor() {
+      this.path = new int[16];
+      reset();
+    }
+
+    /**
+     * Moves back to the root.
+     */
+    public void reset() {
+      this.node = size > 0 ? 0 : -1;
+      this.depth = 0;
+    }
+
+    /**
+     * @return whether the cursor moved to the first child of its node
+     */
+    public boolean firstChild() {
+      final int child = firstChildren[node];
+      if (child < 0) {
+        return false;
+      }
+      if (depth == path.length) {
+        path = Arrays.copyOf(path, depth << 1);
+      }
+      path[depth++] = node;
+      node = child;
+      return true;
+    }
+
+    /**
+     * @return whether the cursor moved to the next sibling of its node
+     */
+    public boolean nextSibling() {
+      final int sibling = nextSiblings[node];
+      if (sibling < 0) {
+        return false;
+      }
+      node = sibling;
+      return true;
+    }
+
+    /**
+     * @return whether the cursor moved to the parent of its node
+     */
+    public boolean parent() {
+      if (depth == 0) {
+        return false;
+      }
+      node = path[--depth];
+      return true;
+    }
+
+    /**
+     * @return index of the current node
+     */
+    public int node() {
+      return node;
+    }
+
+    /**
+     * @return number of ancestors of the current node
+     */
+    public int depth() {
+      return depth;
+    }
+
+    public NodeKind kind() {
+      return FlatTree.this.kind(node);
+    }
+
+    public int tag() {
+      return FlatTree.this.tag(node);
+    }
+
+    public int start() {
+      return FlatTree.this.start(node);
+    }
+
+    public int end() {
+      return FlatTree.this.end(node);
+    }
+
+    public double number() {
+      return FlatTree.this.number(node);
+    }
+
+    public String string() {
+      return FlatTree.this.string(node);
+    }
+
+  }
+
+  private final LineMap lines;
+  private int[] kinds;
+  private int[] firstChildren;
+  private int[] nextSiblings;
+  private int[] starts;
+  private int[] ends;
+  private long[] payloads;
+  private int size;
+  private String[] strings;
+  private int stringCount;
+  private Map<String, Integer> stringIndex;
+  private int[] startLines;
+
+  /**
+   * Creates an empty tree, to which nodes are added in pre-order.
+   *
+   * @param lines line map of the source
+   */
+  public FlatTree(LineMap lines) {
+    if (lines == null) {
+      throw new NullPointerException();
+    }
+    this.lines = lines;
+    this.kinds = new int[INITIAL_CAPACITY];
+    this.firstChildren = new int[INITIAL_CAPACITY];
+    this.nextSiblings = new int[INITIAL_CAPACITY];
+    this.starts = new int[INITIAL_CAPACITY];
+    this.ends = new int[INITIAL_CAPACITY];
+    this.payloads = new long[INITIAL_CAPACITY];
+    this.size = 0;
+    this.strings = new String[INITIAL_CAPACITY];
+    this.stringCount = 0;
+    this.stringIndex = new HashMap<>();
+  }
+
+  public LineMap getLineMap() {
+    return this.lines;
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  public Cursor cursor() {
+    return new Cursor();
+  }
+
+  public NodeKind kind(int node) {
+    return KINDS[this.kinds[check(node)] & KIND_MASK];
+  }
+
+  public int tag(int node) {
+    return this.kinds[check(node)] >>> KIND_BITS;
+  }
+
+  /**
+   * @return index of the first child of a node, or -1 if it has none
+   */
+  public int firstChild(int node) {
+    return this.firstChildren[check(node)];
+  }
+
+  /**
+   * @return index of the next sibling of a node, or -1 if it has none
+   */
+  public int nextSibling(int node) {
+    return this.nextSiblings[check(node)];
+  }
+
+  public int start(int node) {
+    return this.starts[check(node)];
+  }
+
+  public int end(int node) {
+    return this.ends[check(node)];
+  }
+
+  /**
+   * @return payload of a node, a string index or the bits of a number
+   */
+  public long payload(int node) {
+    return this.payloads[check(node)];
+  }
+
+  /**
+   * @return value of a {@link NodeKind#NUMBER} node
+   */
+  public double number(int node) {
+    return Double.longBitsToDouble(this.payloads[check(node)]);
+  }
+
+  /**
+   * @return name or value of a node with a string payload
+   */
+  public String string(int node) {
+    return this.strings[(int) this.payloads[check(node)]];
+  }
+
+  public int stringCount() {
+    return this.stringCount;
+  }
+
+  public String stringAt(int index) {
+    if (index < 0 || index >= this.stringCount) {
+      throw new IndexOutOfBoundsException(
+          String.format("string %d of %d", index, this.stringCount));
+    }
+    return this.strings[index];
+  }
+
+  /**
+   * Appends a node. Nodes must be added in pre-order: a parent before
+   * its children, and the children in order.
+   *
+   * @param kind node kind
+   * @param tag small value stored with the kind
+   * @param start offset of the start of the node
+   * @param end offset of the end of the node
+   * @param payload string index or bits of a number
+   * @param previous index of the previous sibling, or -1 for a first child
+   * @param parent index of the parent, or -1 for the root
+   * @return index of the node
+   */
+  public int add(NodeKind kind, int tag, int start, int end, long payload,
+                 int previous, int parent) {
+    if (this.size == this.kinds.length) {
+      grow();
+    }
+    final int node = this.size++;
+    this.kinds[node] = (tag << KIND_BITS) | kind.ordinal();
+    this.firstChildren[node] = -1;
+    this.nextSiblings[node] = -1;
+    this.starts[node] = start;
+    this.ends[node] = end;
+    this.payloads[node] = payload;
+    if (previous >= 0) {
+      this.nextSiblings[previous] = node;
+    } else if (parent >= 0) {
+      this.firstChildren[parent] = node;
+    }
+    return node;
+  }
+
+  /**
+   * Adds a string to the side table unless it is already there.
+   *
+   * @param value string
+   * @return index of the string, for use as a payload
+   */
+  public int string(String value) {
+    final Integer index = this.stringIndex.get(value);
+    if (index != null) {
+      return index;
+    }
+    if (this.stringCount == this.strings.length) {
+      this.strings = Arrays.copyOf(this.strings, this.stringCount << 1);
+    }
+    this.strings[this.stringCount] = value;
+    this.stringIndex.put(value, this.stringCount);
+    return this.stringCount++;
+  }
+
+  /**
+   * Flattens a compilation unit. Only the offsets of its source locations
+   * are kept; lines and columns are found through the line map again when
+   * the unit is rebuilt.
+   *
+   * @param unit compilation unit
+   * @param lines line map of the source of the unit
+   * @return flat tree of the unit
+   */
+  public static FlatTree of(CompilationUnit unit, LineMap lines) {
+
+    if (unit == null) {
+      throw new NullPointerException();
+    }
+
+    final FlatTree tree = new FlatTree(lines);
+
+    // pending nodes with their parents, children pushed in reverse so
+    // they are added in order. the last child added to each node is
+    // tracked to link siblings
+
+    Node[] pending = new Node[INITIAL_CAPACITY];
+    int[] parents = new int[INITIAL_CAPACITY];
+    int count = 0;
+    int[] last = new int[INITIAL_CAPACITY];
+
+    final List<Node> children = new ArrayList<>();
+
+    pending[count] = unit;
+    parents[count] = -1;
+    count++;
+
+    while (count > 0) {
+
+      count--;
+
+      final Node node = pending[count];
+      final int parent = parents[count];
+
+      pending[count] = null;
+
+      final int index = tree.flatten(node, parent, parent >= 0 ? last[parent] : -1);
+
+      if (index == last.length) {
+        last = Arrays.copyOf(last, index << 1);
+      }
+
+      last[index] = -1;
+
+      if (parent >= 0) {
+        last[parent] = index;
+      }
+
+      children.clear();
+      children(node, children);
+
+      if (count + children.size() > pending.length) {
+        final int capacity = Math.max(count + children.size(), pending.length << 1);
+        pending = Arrays.copyOf(pending, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+      }
+
+      for (int i = children.size() - 1; i >= 0; i--) {
+        pending[count] = children.get(i);
+        parents[count] = index;
+        count++;
+      }
+
+    }
+
+    return tree;
+
+  }
+
+  /**
+   * Rebuilds the compilation unit of the tree, children before parents.
+   *
+   * @return compilation unit
+   */
+  public CompilationUnit toCompilationUnit() {
+
+    if (this.size == 0 || kind(0) != NodeKind.UNIT) {
+      throw new IllegalStateException("tree does not hold a compilation unit");
+    }
+
+    final Object[] built = new Object[this.size];
+    Object[] children = new Object[INITIAL_CAPACITY];
+
+    this.startLines = startLines();
+
+    try {
+      for (int node = this.size - 1; node >= 0; node--) {
+
+        int count = 0;
+
+        for (int child = this.firstChildren[node]; child >= 0; child = this.nextSiblings[child]) {
+          if (count == children.length) {
+            children = Arrays.copyOf(children, count << 1);
+          }
+          children[count++] = built[child];
+          built[child] = null;
+        }
+
+        final NodeKind kind = kind(node);
+
+        built[node] = build(kind, tag(node), kind != NodeKind.EMPTY ? range(node) : null,
+            hasString(kind) ? string(node) : null,
+            kind == NodeKind.NUMBER ? number(node) : 0,
+            children, 0, count);
+
+      }
+    } finally {
+      this.startLines = null;
+    }
+
+    return (CompilationUnit) built[0];
+
+  }
+
+  /**
+   * Adds the node for an IR node, or an empty node for null.
+   */
+  private int flatten(Node node, int parent, int previous) {
+
+    // an empty node takes the end of the node before it, which keeps
+    // offsets in order for the delta encoding of a UnitWriter
+
+    if (node == null) {
+      final int offset = this.size > 0 ? this.ends[this.size - 1] : 0;
+      return add(NodeKind.EMPTY, 0, offset, offset, 0, previous, parent);
+    }
+
+    final SourceRange range = node.getSourceRange();
+    final int start = range != null ? range.getStartLocation().getOffset() : 0;
+    final int end = range != null ? range.getEndLocation().getOffset() : 0;
+
+    NodeKind kind;
+    int tag = 0;
+    long payload = 0;
+
+    if (node instanceof CompilationUnit) {
+      kind = NodeKind.UNIT;
+      payload = string(((CompilationUnit) node).getName());
+    } else if (node instanceof ClassDeclaration) {
+      kind = NodeKind.CLASS;
+    } else if (node instanceof ClassFieldDeclaration) {
+      kind = NodeKind.FIELD;
+      tag = visibility(((ClassFieldDeclaration) node).getVisibility());
+    } else if (node instanceof FunctionDeclaration) {
+      final FunctionDeclaration function = (FunctionDeclaration) node;
+      kind = NodeKind.FUNCTION;
+      tag = visibility(function.getVisibility())
+          | (function.isInline() ? INLINE : 0)
+          | (function.isAbstract() ? ABSTRACT : 0);
+    } else if (node instanceof Parameter) {
+      kind = NodeKind.PARAMETER;
+    } else if (node instanceof Block) {
+      kind = NodeKind.BLOCK;
+    } else if (node instanceof Identifier) {
+      kind = NodeKind.IDENTIFIER;
+      payload = string(((Identifier) node).getName());
+    } else if (node instanceof ExpressionStatement) {
+      kind = NodeKind.EXPRESSION_STATEMENT;
+    } else if (node instanceof ConditionalStatement) {
+      kind = NodeKind.CONDITIONAL;
+    } else if (node instanceof LoopStatement) {
+      kind = NodeKind.LOOP;
+      tag = ((LoopStatement) node).getKind().ordinal();
+    } else if (node instanceof ForLoopStatement) {
+      kind = NodeKind.FOR_LOOP;
+    } else if (node instanceof ReturnStatement) {
+      kind = NodeKind.RETURN;
+    } else if (node instanceof LabelStatement) {
+      kind = NodeKind.LABEL;
+    } else if (node instanceof FlowControlStatement) {
+      kind = NodeKind.FLOW_CONTROL;
+      tag = ((FlowControlStatement) node).getKind().ordinal();
+    } else if (node instanceof ErrorHandlerStatement) {
+      kind = NodeKind.ERROR_HANDLER;
+      tag = ((ErrorHandlerStatement) node).getKind().ordinal();
+    } else if (node instanceof AssignmentExpression) {
+      kind = NodeKind.ASSIGNMENT;
+      tag = ((AssignmentExpression) node).getOperator().ordinal();
+    } else if (node instanceof LogicalBinaryExpression) {
+      kind = NodeKind.LOGICAL;
+      tag = ((LogicalBinaryExpression) node).getOperator().ordinal();
+    } else if (node instanceof RelationalBinaryExpression) {
+      kind = NodeKind.RELATIONAL;
+      tag = ((RelationalBinaryExpression) node).getOperator().ordinal();
+    } else if (node instanceof ShiftBinaryExpression) {
+      kind = NodeKind.SHIFT;
+      tag = ((ShiftBinaryExpression) node).getOperator().ordinal();
+    } else if (node instanceof AdditiveBinaryExpression) {
+      kind = NodeKind.ADDITIVE;
+      tag = ((AdditiveBinaryExpression) node).getOperator().ordinal();
+    } else if (node instanceof MultiplicativeBinaryExpression) {
+      kind = NodeKind.MULTIPLICATIVE;
+      tag = ((MultiplicativeBinaryExpression) node).getOperator().ordinal();
+    } else if (node instanceof UnaryExpression) {
+      kind = NodeKind.UNARY;
+      tag = ((UnaryExpression) node).getOperator().ordinal();
+    } else if (node instanceof PostfixExpression) {
+      kind = NodeKind.POSTFIX;
+      tag = ((PostfixExpression) node).getOperator().ordinal();
+    } else if (node instanceof CallExpression) {
+      kind = NodeKind.CALL;
+    } else if (node instanceof IndexExpression) {
+      kind = NodeKind.INDEX;
+    } else if (node instanceof ConstantNumberExpression) {
+      kind = NodeKind.NUMBER;
+      payload = Double.doubleToRawLongBits(((ConstantNumberExpression) node).getValue());
+    } else if (node instanceof ConstantStringExpression) {
+      kind = NodeKind.STRING;
+      payload = string(((ConstantStringExpression) node).getValue());
+    } else if (node instanceof ConstantBooleanExpression) {
+      kind = NodeKind.BOOLEAN;
+      tag = ((ConstantBooleanExpression) node).getValue() ? 1 : 0;
+    } else {
+      throw new IllegalArgumentException(String.format(
+          "unsupported node %s", node.getClass().getName()));
+    }
+
+    return add(kind, tag, start, end, payload, previous, parent);
+
+  }
+
+  /**
+   * Lists the children of an IR node in the order of its node kind.
+   */
+  private static void children(Node node, List<Node> out) {
+    if (node instanceof CompilationUnit) {
+      final CompilationUnit unit = (CompilationUnit) node;
+      out.addAll(unit.getClassDeclarations());
+      out.addAll(unit.getFunctionDeclarations());
+    } else if (node instanceof ClassDeclaration) {
+      final ClassDeclaration decl = (ClassDeclaration) node;
+      out.add(decl.getName());
+      out.addAll(decl.getFieldDeclarations());
+      out.addAll(decl.getFunctionDeclarations());
+    } else if (node instanceof ClassFieldDeclaration) {
+      out.add(((ClassFieldDeclaration) node).getName());
+    } else if (node instanceof FunctionDeclaration) {
+      final FunctionDeclaration decl = (FunctionDeclaration) node;
+      out.add(decl.getName());
+      out.addAll(decl.getParameters());
+      out.add(decl.getBody());
+    } else if (node instanceof Parameter) {
+      out.add(((Parameter) node).getName());
+    } else if (node instanceof Block) {
+      out.addAll(((Block) node).getStatements());
+    } else if (node instanceof ExpressionStatement) {
+      out.add(((ExpressionStatement) node).getExpression());
+    } else if (node instanceof ConditionalStatement) {
+      final ConditionalStatement stmt = (ConditionalStatement) node;
+      out.add(stmt.getConditionExpression());
+      out.add(stmt.getBody());
+    } else if (node instanceof LoopStatement) {
+      final LoopStatement stmt = (LoopStatement) node;
+      out.add(stmt.getConditionExpression());
+      out.add(stmt.getBody());
+    } else if (node instanceof ForLoopStatement) {
+      final ForLoopStatement stmt = (ForLoopStatement) node;
+      out.add(stmt.getInitialExpression());
+      out.add(stmt.getConditionExpression());
+      out.add(stmt.getIteratorExpression());
+      out.add(stmt.getBody());
+    } else if (node instanceof ReturnStatement) {
+      out.add(((ReturnStatement) node).getExpression());
+    } else if (node instanceof LabelStatement) {
+      out.add(((LabelStatement) node).getName());
+    } else if (node instanceof AssignmentExpression) {
+      out.add(((AssignmentExpression) node).getLeft());
+      out.add(((AssignmentExpression) node).getRight());
+    } else if (node instanceof LogicalBinaryExpression) {
+      out.add(((LogicalBinaryExpression) node).getLeft());
+      out.add(((LogicalBinaryExpression) node).getRight());
+    } else if (node instanceof RelationalBinaryExpression) {
+      out.add(((RelationalBinaryExpression) node).getLeft());
+      out.add(((RelationalBinaryExpression) node).getRight());
+    } else if (node instanceof ShiftBinaryExpression) {
+      out.add(((ShiftBinaryExpression) node).getLeft());
+      out.add(((ShiftBinaryExpression) node).getRight());
+    } else if (node instanceof AdditiveBinaryExpression) {
+      out.add(((AdditiveBinaryExpression) node).getLeft());
+      out.add(((AdditiveBinaryExpression) node).getRight());
+    } else if (node instanceof MultiplicativeBinaryExpression) {
+      out.add(((MultiplicativeBinaryExpression) node).getLeft());
+      out.add(((MultiplicativeBinaryExpression) node).getRight());
+    } else if (node instanceof UnaryExpression) {
+      out.add(((UnaryExpression) node).getExpression());
+    } else if (node instanceof PostfixExpression) {
+      out.add(((PostfixExpression) node).getIdentifier());
+    } else if (node instanceof CallExpression) {
+      out.add(((CallExpression) node).getFunction());
+      out.addAll(((CallExpression) node).getArguments());
+    } else if (node instanceof IndexExpression) {
+      out.add(((IndexExpression) node).getIdentifier());
+      out.add(((IndexExpression) node).getIndexExpression());
+    }
+  }
+
+  /**
+   * Creates the IR node of a kind, given its already built children.
+   * Used by {@link #toCompilationUnit} and to decode units straight into
+   * IR by a {@link UnitReader}.
+   *
+   * @param kind node kind
+   * @param tag tag of the node
+   * @param range source range of the node
+   * @param string string payload of the node, if its kind has one
+   * @param number number payload of the node, if its kind has one
+   * @param children array holding the built children
+   * @param from index of the first child in the array
+   * @param count number of children
+   * @return IR node, or null for an empty node
+   * @throws IllegalStateException if the number of children does not
+   * match the kind
+   */
+  static Object build(NodeKind kind, int tag, SourceRange range, String string, double number,
+                      Object[] children, int from, int count) {
+
+    final int arity = ARITIES[kind.ordinal()];
+
+    if (arity >= 0 ? count != arity : count < -1 - arity) {
+      throw new IllegalStateException(String.format(
+          "%s node with %d children", kind, count));
+    }
+
+    switch (kind) {
+      case EMPTY:
+        return null;
+      case UNIT: {
+        final CompilationUnit unit = new CompilationUnit(range, string);
+        for (int i = 0; i < count; i++) {
+          final Object child = children[from + i];
+          if (child instanceof ClassDeclaration) {
+            unit.getClassDeclarations().add((ClassDeclaration) child);
+          } else {
+            unit.getFunctionDeclarations().add((FunctionDeclaration) child);
+          }
+        }
+        return unit;
+      }
+      case CLASS: {
+        final ClassDeclaration decl = new ClassDeclaration(
+            range, (Identifier) children[from]);
+        for (int i = 1; i < count; i++) {
+          final Object child = children[from + i];
+          if (child instanceof ClassFieldDeclaration) {
+            decl.getFieldDeclarations().add((ClassFieldDeclaration) child);
+          } else {
+            decl.getFunctionDeclarations().add((FunctionDeclaration) child);
+          }
+        }
+        return decl;
+      }
+      case FIELD: {
+        final ClassFieldDeclaration decl = new ClassFieldDeclaration(
+            range, (Identifier) children[from]);
+        decl.setVisibility(visibility(tag));
+        return decl;
+      }
+      case FUNCTION: {
+        final FunctionDeclaration decl = new FunctionDeclaration(
+            range, (Identifier) children[from]);
+        final int last = count - 1;
+        for (int i = 1; i < last; i++) {
+          decl.getParameters().add((Parameter) children[from + i]);
+        }
+        decl.setVisibility(visibility(tag));
+        decl.setIsInline((tag & INLINE) != 0);
+        decl.setIsAbstract((tag & ABSTRACT) != 0);
+        decl.setBody((Block) children[from + last]);
+        return decl;
+      }
+      case PARAMETER:
+        return new Parameter(range, (Identifier) children[from]);
+      case BLOCK: {
+        final Block block = new Block(range);
+        for (int i = 0; i < count; i++) {
+          block.getStatements().add((Statement) children[from + i]);
+        }
+        return block;
+      }
+      case IDENTIFIER:
+        return new Identifier(range, string);
+      case EXPRESSION_STATEMENT:
+        return new ExpressionStatement(range, (Expression) children[from]);
+      case CONDITIONAL:
+        return new ConditionalStatement(range,
+            (Expression) children[from], (Block) children[from + 1]);
+      case LOOP: {
+        final LoopStatement stmt = new LoopStatement(range,
+            LOOP_KINDS[tag], (Expression) children[from]);
+        stmt.setBody((Block) children[from + 1]);
+        return stmt;
+      }
+      case FOR_LOOP: {
+        final ForLoopStatement stmt = new ForLoopStatement(range);
+        stmt.setInitialExpression((Expression) children[from]);
+        stmt.setConditionExpression((Expression) children[from + 1]);
+        stmt.setIteratorExpression((Expression) children[from + 2]);
+        stmt.setBody((Block) children[from + 3]);
+        return stmt;
+      }
+      case RETURN: {
+        final ReturnStatement stmt = new ReturnStatement(range);
+        stmt.setExpression((Expression) children[from]);
+        return stmt;
+      }
+      case LABEL:
+        return new LabelStatement(range, (Identifier) children[from]);
+      case FLOW_CONTROL:
+        return new FlowControlStatement(range, FLOW_CONTROL_KINDS[tag]);
+      case ERROR_HANDLER:
+        return new ErrorHandlerStatement(range, ERROR_HANDLER_KINDS[tag]);
+      case ASSIGNMENT:
+        return new AssignmentExpression(range,
+            ASSIGNMENT_OPERATORS[tag],
+            (Expression) children[from], (Expression) children[from + 1]);
+      case LOGICAL:
+        return new LogicalBinaryExpression(range,
+            LOGICAL_OPERATORS[tag],
+            (Expression) children[from], (Expression) children[from + 1]);
+      case RELATIONAL:
+        return new RelationalBinaryExpression(range,
+            RELATIONAL_OPERATORS[tag],
+            (Expression) children[from], (Expression) children[from + 1]);
+      case SHIFT:
+        return new ShiftBinaryExpression(range,
+            SHIFT_OPERATORS[tag],
+            (Expression) children[from], (Expression) children[from + 1]);
+      case ADDITIVE:
+        return new AdditiveBinaryExpression(range,
+            ADDITIVE_OPERATORS[tag],
+            (Expression) children[from], (Expression) children[from + 1]);
+      case MULTIPLICATIVE:
+        return new MultiplicativeBinaryExpression(range,
+            MULTIPLICATIVE_OPERATORS[tag],
+            (Expression) children[from], (Expression) children[from + 1]);
+      case UNARY:
+        return new UnaryExpression(range,
+            UNARY_OPERATORS[tag], (Expression) children[from]);
+      case POSTFIX:
+        return new PostfixExpression(range,
+            POSTFIX_OPERATORS[tag], (Identifier) children[from]);
+      case CALL: {
+        final List<Expression> arguments = new ArrayList<>(count - 1);
+        for (int i = 1; i < count; i++) {
+          arguments.add((Expression) children[from + i]);
+        }
+        return new CallExpression(range, (Identifier) children[from], arguments);
+      }
+      case INDEX: {
+        final IndexExpression expr = new IndexExpression(
+            range, (Identifier) children[from]);
+        expr.setIndexExpression((Expression) children[from + 1]);
+        return expr;
+      }
+      case NUMBER:
+        return new ConstantNumberExpression(range, number);
+      case STRING:
+        return new ConstantStringExpression(range, string);
+      case BOOLEAN:
+        return new ConstantBooleanExpression(range, tag != 0);
+      default:
+        throw new IllegalStateException(String.format(
+            "unsupported node kind %s", kind));
+    }
+
+  }
+
+  /**
+   * Finds the line of the start of every node. Starts do not decrease in
+   * pre-order, so this is one pass over the line map rather than a search
+   * per node.
+   */
+  private int[] startLines() {
+    final int[] result = new int[this.size];
+    int line = 0;
+    for (int node = 0; node < this.size; node++) {
+      line = this.lines.line(this.starts[node], line);
+      result[node] = line;
+    }
+    return result;
+  }
+
+  private SourceRange range(int node) {
+
+    final SourceRange range = SourceRange.empty();
+    final int line = this.startLines[node];
+
+    // most nodes end on the line they start on or soon after it
+
+    locate(range.getStartLocation(), this.starts[node], line);
+    locate(range.getEndLocation(), this.ends[node], this.lines.line(this.ends[node], line));
+
+    return range;
+
+  }
+
+  private void locate(SourceLocation location, int offset, int line) {
+    location.setOffset(offset);
+    location.setLine(line);
+    location.setColumn(offset - this.lines.start(line));
+  }
+
+  private static int[] arities() {
+    final NodeKind[] kinds = NodeKind.values();
+    final int[] arities = new int[kinds.length];
+    for (final NodeKind kind : kinds) {
+      switch (kind) {
+        case UNIT:
+        case BLOCK:
+          arities[kind.ordinal()] = -1;
+          break;
+        case CLASS:
+        case CALL:
+          arities[kind.ordinal()] = -2;
+          break;
+        case FUNCTION:
+          arities[kind.ordinal()] = -3;
+          break;
+        case FIELD:
+        case PARAMETER:
+        case EXPRESSION_STATEMENT:
+        case RETURN:
+        case LABEL:
+        case UNARY:
+        case POSTFIX:
+          arities[kind.ordinal()] = 1;
+          break;
+        case CONDITIONAL:
+        case LOOP:
+        case ASSIGNMENT:
+        case LOGICAL:
+        case RELATIONAL:
+        case SHIFT:
+        case ADDITIVE:
+        case MULTIPLICATIVE:
+        case INDEX:
+          arities[kind.ordinal()] = 2;
+          break;
+        case FOR_LOOP:
+          arities[kind.ordinal()] = 4;
+          break;
+        default:
+          arities[kind.ordinal()] = 0;
+          break;
+      }
+    }
+    return arities;
+  }
+
+  /**
+   * @return whether nodes of a kind have a string payload
+   */
+  static boolean hasString(NodeKind kind) {
+    return kind == NodeKind.UNIT || kind == NodeKind.IDENTIFIER || kind == NodeKind.STRING;
+  }
+
+  private static int visibility(Visibility visibility) {
+    return visibility != null ? visibility.ordinal() + 1 : 0;
+  }
+
+  private static Visibility visibility(int tag) {
+    final int value = tag & VISIBILITY_MASK;
+    return value != 0 ? VISIBILITIES[value - 1] : null;
+  }
+
+  private int check(int node) {
+    if (node < 0 || node >= this.size) {
+      throw new IndexOutOfBoundsException(
+          String.format("node %d of %d", node, this.size));
+    }
+    return node;
+  }
+
+  private void grow() {
+    final int capacity = this.kinds.length << 1;
+    this.kinds = Arrays.copyOf(this.kinds, capacity);
+    this.firstChildren = Arrays.copyOf(this.firstChildren, capacity);
+    this.nextSiblings = Arrays.copyOf(this.nextSiblings, capacity);
+    this.starts = Arrays.copyOf(this.starts, capacity);
+    this.ends = Arrays.copyOf(this.ends, capacity);
+    this.payloads = Arrays.copyOf(this.payloads, capacity);
+  }
+
+}
@@ -0,0 +1,478 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import net.rpgtoolkit.blade.ir.ClassDeclaration;
+import net.rpgtoolkit.blade.ir.CompilationUnit;
+import net.rpgtoolkit.blade.ir.FunctionDeclaration;
+import net.rpgtoolkit.blade.ir.SourceLocation;
+import net.rpgtoolkit.blade.ir.SourceRange;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps a program parsed while its text is edited, for editor integration.
+ *
+ * The program is tracked as a sequence of top-level segments, each holding
+ * the leading comments and separators and then one class, function or
+ * statement. An edit reparses only the segments it touches, starting from
+ * the first damaged segment and stopping as soon as the parser reaches the
+ * start of an old, undamaged segment at the same column. The parser is
+ * then in the same state the old segment was parsed in, so every segment
+ * from there on is reused; its declaration and source locations are
+ * shifted by the size of the edit instead of being parsed again.
+ *
+ * The compilation unit is kept across edits; only the declarations of
+ * the reparsed segments are replaced in it. Reused segments still have
+ * every source location shifted, since the tree holds absolute offsets,
+ * so the cost of an edit grows with the number of locations after it.
+ *
+ * The line map is kept up to date alongside and only shifts the line
+ * starts after an edit. The token stream, for syntax highlighting, is
+ * only brought up to date when asked for, and then re-lexes only the
+ * lines the edits since touched.
+ *
+ * Unlike a parser that is handed the previous unit and token stream along
+ * with each edit, this parser owns the text, the unit and the tokens; an
+ * editor applies its edits through {@link #edit} and reads the results
+ * back.
+ *
+ * Names and string literals of all segments are interned in one symbol
+ * table, so reparsed and reused segments share symbol instances.
+ *
+ * Parse errors are reported to listeners only for the text that is
+ * actually parsed.
+ *
+ * Not thread-safe.
+ */
+public class IncrementalParser {
+
+  private static class Segment {
+
+    int offset;
+    int line;
+    final int column;
+    ClassDeclaration classDeclaration;
+    FunctionDeclaration functionDeclaration;
+
+    // locations inside the segment, relative to its start
+
+    SourceLocation[] locations;
+    int[] offsets;
+    int[] lines;
+
+    Segment(int offset, int line, int column) {
+      this.offset = offset;
+      this.line = line;
+      this.column = column;
+    }
+
+    void capture(List<SourceLocation> recorded) {
+      final int size = recorded.size();
+      this.locations = recorded.toArray(new SourceLocation[size]);
+      this.offsets = new int[size];
+      this.lines = new int[size];
+      for (int i = 0; i < size; i++) {
+        this.offsets[i] = this.locations[i].getOffset() - this.offset;
+        this.lines[i] = this.locations[i].getLine() - this.line;
+      }
+    }
+
+    void shift(int delta, int lineDelta) {
+      this.offset += delta;
+      this.line += lineDelta;
+      for (int i = 0; i < this.locations.length; i++) {
+        this.locations[i].setOffset(this.offset + this.offsets[i]);
+        this.locations[i].setLine(this.line + this.lines[i]);
+      }
+    }
+
+  }
+
+  private final List<Segment> segments;
+  private final Set<ParserListener> listeners;
+  private char[] text;
+  private int length;
+  private LineMap lineMap;
+  private final SymbolTable symbols;
+  private int endOffset;
+  private CompilationUnit unit;
+  private TokenStream tokens;
+
+  // region of the text edited since the token stream was last brought up
+  // to date, as its start and its ends in the old and the new text
+
+  private int dirtyStart;
+  private int dirtyOldEnd;
+  private int dirtyNewEnd;
+
+  public IncrementalParser(String input) {
+    if (input == null) {
+      throw new NullPointerException();
+    }
+    this.segments = new ArrayList<>();
+    this.listeners = new HashSet<>();
+    this.symbols = new SymbolTable();
+    this.length = input.length();
+    this.text = new char[this.length + 1];
+    input.getChars(0, this.length, this.text, 0);
+    this.lineMap = new LineMap(this.text, this.length);
+    this.dirtyStart = -1;
+  }
+
+  public void addListener(ParserListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(ParserListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Parses the whole program, discarding any previous result.
+   *
+   * @return compilation unit of the program
+   */
+  public CompilationUnit parse() {
+    this.segments.clear();
+    this.unit = null;
+    this.tokens = null;
+    reparse(-1, 0, Integer.MAX_VALUE, 0);
+    return this.unit;
+  }
+
+  /**
+   * @return compilation unit of the current text
+   */
+  public CompilationUnit getCompilationUnit() {
+    return this.unit;
+  }
+
+  /**
+   * Returns the tokens of the current text. The stream is only brought up
+   * to date when it is asked for: the edits made since are re-lexed as a
+   * single edit covering all of them, whose tokens are available from the
+   * stream's damage range.
+   *
+   * @return tokens of the current text
+   */
+  public TokenStream getTokens() {
+    if (this.tokens == null) {
+      this.tokens = new TokenStream(lexer());
+    } else if (this.dirtyStart >= 0) {
+      this.tokens.relex(lexer(), this.dirtyStart,
+          this.dirtyOldEnd - this.dirtyStart, this.dirtyNewEnd - this.dirtyStart);
+    }
+    this.dirtyStart = -1;
+    return this.tokens;
+  }
+
+  /**
+   * @return line map of the current text
+   */
+  public LineMap getLineMap() {
+    return this.lineMap;
+  }
+
+  public String getText() {
+    return new String(this.text, 0, this.length);
+  }
+
+  /**
+   * Applies a text edit and updates the compilation unit.
+   *
+   * @param offset start of the edit
+   * @param removed number of characters removed at the offset
+   * @param inserted text inserted at the offset
+   * @return compilation unit of the edited text
+   */
+  public CompilationUnit edit(int offset, int removed, String inserted) {
+
+    if (inserted == null) {
+      throw new NullPointerException();
+    }
+
+    if (offset < 0 || removed < 0 || offset + removed > this.length) {
+      throw new IndexOutOfBoundsException(String.format(
+          "edit (%d, %d) outside of text length %d", offset, removed, this.length));
+    }
+
+    if (this.unit == null) {
+      apply(offset, removed, inserted);
+      return parse();
+    }
+
+    final int delta = inserted.length() - removed;
+
+    apply(offset, removed, inserted);
+    damage(offset, removed, inserted.length());
+
+    // the first damaged segment is the one holding the edit; an edit right
+    // at a segment boundary may also extend the segment before it. an edit
+    // ahead of the first segment reparses from the start of the text
+
+    int first = find(offset);
+
+    if (first > 0 && this.segments.get(first).offset == offset) {
+      first--;
+    }
+
+    // segments after the one holding the end of the edit are candidates
+    // for reuse
+
+    final int last = find(offset + removed);
+
+    reparse(first, last + 1, offset + inserted.length(), delta);
+
+    return this.unit;
+
+  }
+
+  /**
+   * Reparses from a segment until the parser lines up with an old segment
+   * again, then shifts and reuses the rest.
+   *
+   * @param first index of the first segment to reparse, or -1 to reparse
+   * from the start of the text
+   * @param reusable index of the first old segment that may be reused
+   * @param limit offset in the new text that must be parsed past before
+   * reusing a segment
+   * @param delta change in text length
+   */
+  private void reparse(int first, int reusable, int limit, int delta) {
+
+    final Lexer lexer = lexer();
+    final LexerContext context = lexer.getContext();
+
+    if (first >= 0) {
+      context.offset = this.segments.get(first).offset;
+    }
+
+    final Parser parser = new Parser(lexer);
+    parser.setSymbolTable(this.symbols);
+    for (final ParserListener listener : this.listeners) {
+      parser.addListener(listener);
+    }
+
+    final List<Segment> parsed = new ArrayList<>();
+    int resume = reusable;
+    int lineDelta = 0;
+
+    while (true) {
+
+      final Token next = parser.peek();
+
+      if (next.kind == TokenKind.END) {
+        resume = this.segments.size();
+        this.endOffset = context.offset;
+        break;
+      }
+
+      if (next.offset >= limit) {
+        while (resume < this.segments.size()
+            && this.segments.get(resume).offset + delta < next.offset) {
+          resume++;
+        }
+        if (resume < this.segments.size()
+            && this.segments.get(resume).offset + delta == next.offset
+            && this.segments.get(resume).column == this.lineMap.column(next.offset)) {
+          lineDelta = this.lineMap.line(next.offset) - this.segments.get(resume).line;
+          this.endOffset += delta;
+          break;
+        }
+      }
+
+      parsed.add(parseSegment(parser, next));
+
+    }
+
+    // splice the reparsed segments in and shift the reused ones
+
+    final int from = Math.max(first, 0);
+
+    update(from, resume, parsed);
+
+    this.segments.subList(from, resume).clear();
+    this.segments.addAll(from, parsed);
+
+    if (delta != 0 || lineDelta != 0) {
+      for (int i = from + parsed.size(); i < this.segments.size(); i++) {
+        this.segments.get(i).shift(delta, lineDelta);
+      }
+    }
+
+  }
+
+  private Segment parseSegment(Parser parser, Token next) {
+
+    final Segment segment = new Segment(next.offset,
+        this.lineMap.line(next.offset), this.lineMap.column(next.offset));
+    final List<SourceLocation> recorded = new ArrayList<>();
+    final CompilationUnit scratch = new CompilationUnit(SourceRange.empty(), "");
+    final SourceLocationBuilder loc = parser.getLocationBuilder();
+
+    loc.record(recorded);
+
+    // leading comments and separators, then a single element
+
+    TokenKind kind = parser.peek().kind;
+
+    while (TokenSet.contains(TokenSet.TRIVIA, kind)) {
+      parser.parseDeclaration(scratch);
+      kind = parser.peek().kind;
+    }
+
+    if (kind != TokenKind.END) {
+      parser.parseDeclaration(scratch);
+    }
+
+    loc.record(null);
+
+    if (!scratch.getClassDeclarations().isEmpty()) {
+      segment.classDeclaration = scratch.getClassDeclarations().get(0);
+    }
+
+    if (!scratch.getFunctionDeclarations().isEmpty()) {
+      segment.functionDeclaration = scratch.getFunctionDeclarations().get(0);
+    }
+
+    segment.capture(recorded);
+
+    return segment;
+
+  }
+
+  /**
+   * Replaces the declarations of the segments in [from, to) with those of
+   * freshly parsed segments in the compilation unit, which is created on
+   * the first parse and reused after that.
+   */
+  private void update(int from, int to, List<Segment> parsed) {
+
+    if (this.unit == null) {
+      this.unit = new CompilationUnit(SourceRange.empty(), "???");
+    }
+
+    final SourceLocation end = this.unit.getSourceRange().getEndLocation();
+
+    end.setOffset(this.endOffset);
+    end.setLine(this.lineMap.line(this.endOffset));
+    end.setColumn(this.lineMap.column(this.endOffset));
+
+    int classes = 0;
+    int functions = 0;
+
+    for (int i = 0; i < from; i++) {
+      final Segment segment = this.segments.get(i);
+      if (segment.classDeclaration != null)
+        classes++;
+      if (segment.functionDeclaration != null)
+        functions++;
+    }
+
+    int removedClasses = 0;
+    int removedFunctions = 0;
+
+    for (int i = from; i < to; i++) {
+      final Segment segment = this.segments.get(i);
+      if (segment.classDeclaration != null)
+        removedClasses++;
+      if (segment.functionDeclaration != null)
+        removedFunctions++;
+    }
+
+    final List<ClassDeclaration> addedClasses = new ArrayList<>();
+    final List<FunctionDeclaration> addedFunctions = new ArrayList<>();
+
+    for (final Segment segment : parsed) {
+      if (segment.classDeclaration != null)
+        addedClasses.add(segment.classDeclaration);
+      if (segment.functionDeclaration != null)
+        addedFunctions.add(segment.functionDeclaration);
+    }
+
+    final List<ClassDeclaration> classDeclarations = this.unit.getClassDeclarations();
+    final List<FunctionDeclaration> functionDeclarations = this.unit.getFunctionDeclarations();
+
+    classDeclarations.subList(classes, classes + removedClasses).clear();
+    classDeclarations.addAll(classes, addedClasses);
+    functionDeclarations.subList(functions, functions + removedFunctions).clear();
+    functionDeclarations.addAll(functions, addedFunctions);
+
+  }
+
+  /**
+   * Widens the region of the text that the token stream has yet to
+   * re-lex by an edit.
+   */
+  private void damage(int offset, int removed, int inserted) {
+    if (this.tokens == null) {
+      return;
+    }
+    if (this.dirtyStart < 0) {
+      this.dirtyStart = offset;
+      this.dirtyOldEnd = offset + removed;
+      this.dirtyNewEnd = offset + inserted;
+      return;
+    }
+    // text past the region maps back to the old text by the length the
+    // region has grown so far
+    final int grown = this.dirtyNewEnd - this.dirtyOldEnd;
+    this.dirtyOldEnd = Math.max(this.dirtyOldEnd, offset + removed - grown);
+    this.dirtyNewEnd = Math.max(this.dirtyNewEnd, offset + removed) + inserted - removed;
+    this.dirtyStart = Math.min(this.dirtyStart, offset);
+  }
+
+  /**
+   * @return index of the last segment starting at or before an offset,
+   * or -1 if there is none
+   */
+  private int find(int offset) {
+    int lo = 0;
+    int hi = this.segments.size() - 1;
+    int result = -1;
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (this.segments.get(mid).offset <= offset) {
+        result = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return result;
+  }
+
+  private Lexer lexer() {
+    final Lexer lexer = Lexer.adopt(CharBuffer.wrap(this.text, 0, this.length));
+    lexer.setLineMap(this.lineMap);
+    return lexer;
+  }
+
+  private void apply(int offset, int removed, String inserted) {
+    final int length = this.length - removed + inserted.length();
+    if (length + 1 > this.text.length) {
+      final char[] text = new char[Math.max(length + 1, this.text.length * 2)];
+      System.arraycopy(this.text, 0, text, 0, offset);
+      System.arraycopy(this.text, offset + removed, text,
+          offset + inserted.length(), this.length - offset - removed);
+      this.text = text;
+    } else {
+      System.arraycopy(this.text, offset + removed, this.text,
+          offset + inserted.length(), this.length - offset - removed);
+    }
+    inserted.getChars(0, inserted.length(), this.text, offset);
+    this.length = length;
+    this.lineMap.edit(offset, removed, inserted);
+  }
+
+}
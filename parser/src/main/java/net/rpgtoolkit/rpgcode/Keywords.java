@@ -36,4 +36,106 @@ public class Keywords {
     public static final int RESUME = 32;
     public static final int NEXT = 33;
 
+    /**
+     * Classifies a region of source text as a keyword, ignoring case.
+     * Dispatches on the length and first character of the region and
+     * compares the remaining characters in place, so no lexeme string
+     * is created. The region is expected to hold identifier characters.
+     *
+     * @param input source characters
+     * @param offset start of the region
+     * @param length length of the region
+     * @return keyword tag, or zero if the region is not a keyword
+     */
+    public static int find(char[] input, int offset, int length) {
+        final int first = fold(input[offset]);
+        switch (length) {
+            case 2:
+                switch (first) {
+                    case 'd': return matches(input, offset, "do") ? DO : 0;
+                    case 'i': return matches(input, offset, "if") ? IF : 0;
+                    case 'o':
+                        if (matches(input, offset, "or")) return OR;
+                        return matches(input, offset, "on") ? ON : 0;
+                }
+                break;
+            case 3:
+                switch (first) {
+                    case 'v': return matches(input, offset, "var") ? VAR : 0;
+                    case 'f': return matches(input, offset, "for") ? FOR : 0;
+                    case 'a': return matches(input, offset, "and") ? AND : 0;
+                }
+                break;
+            case 4:
+                switch (first) {
+                    case 'l': return matches(input, offset, "loop") ? LOOP : 0;
+                    case 'e': return matches(input, offset, "else") ? ELSE : 0;
+                    case 'c': return matches(input, offset, "case") ? CASE : 0;
+                    case 'n':
+                        if (matches(input, offset, "null")) return NULL;
+                        return matches(input, offset, "next") ? NEXT : 0;
+                    case 't':
+                        if (matches(input, offset, "true")) return TRUE;
+                        return matches(input, offset, "this") ? THIS : 0;
+                }
+                break;
+            case 5:
+                switch (first) {
+                    case 'c': return matches(input, offset, "class") ? CLASS : 0;
+                    case 'w': return matches(input, offset, "while") ? WHILE : 0;
+                    case 'u': return matches(input, offset, "until") ? UNTIL : 0;
+                    case 'b': return matches(input, offset, "break") ? BREAK : 0;
+                    case 'f': return matches(input, offset, "false") ? FALSE : 0;
+                    case 'e': return matches(input, offset, "error") ? ERROR : 0;
+                }
+                break;
+            case 6:
+                switch (first) {
+                    case 'm': return matches(input, offset, "method") ? FUNCTION : 0;
+                    case 'r':
+                        if (matches(input, offset, "return")) return RETURN;
+                        return matches(input, offset, "resume") ? RESUME : 0;
+                    case 'p': return matches(input, offset, "public") ? PUBLIC : 0;
+                    case 's': return matches(input, offset, "switch") ? SWITCH : 0;
+                    case 'e': return matches(input, offset, "elseif") ? ELSEIF : 0;
+                    case 'i': return matches(input, offset, "inline") ? INLINE : 0;
+                }
+                break;
+            case 7:
+                switch (first) {
+                    case 'p': return matches(input, offset, "private") ? PRIVATE : 0;
+                    case 'd': return matches(input, offset, "default") ? DEFAULT : 0;
+                }
+                break;
+            case 8:
+                switch (first) {
+                    case 'f': return matches(input, offset, "function") ? FUNCTION : 0;
+                    case 'c': return matches(input, offset, "continue") ? CONTINUE : 0;
+                }
+                break;
+            case 9:
+                if (first == 'p') {
+                    return matches(input, offset, "protected") ? PROTECTED : 0;
+                }
+                break;
+        }
+        return 0;
+    }
+
+    private static boolean matches(char[] input, int offset, String keyword) {
+        final int length = keyword.length();
+        for (int i = 1; i < length; i++) {
+            if (fold(input[offset + i]) != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int fold(int ch) {
+        // lower-cases ASCII letters; digits are unaffected and underscore
+        // maps outside of the letter range, which is all an identifier holds
+        return ch | 0x20;
+    }
+
 }
@@ -7,19 +7,37 @@
  */
 package net.rpgtoolkit.rpgcode;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.CharBuffer;
 
 /**
  * Lexical analyzer (lexer) for the RPGCode grammar.
  *
+ * Input is copied into a character buffer terminated by a '\0' sentinel,
+ * which lets the scanning loops run without explicit bounds checks. The
+ * lexer never advances beyond the sentinel. Only buffers handed over
+ * within this package are scanned in place instead of copied.
+ *
  * @author Chris Hutchinson
  */
 public class Lexer {
 
+  // powers of ten that are exact in a double, for decoding numbers
+
+  private static final double[] POWERS = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  private static final long MAX_EXACT = 1L << 53;
+
   private final LexerContext context;
-  private final Map<String, Integer> keywords;
-  private String input;
+  private char[] input;
+  private boolean adopted;
+  private LineMap lines;
+  private Trivia trivia;
+  private boolean newline;
+  private boolean legacyComments;
+  private MetricsListener metrics;
 
   public Lexer(String input) {
     this(input, new LexerContext());
@@ -29,79 +47,256 @@ public class Lexer {
     if (input == null || context == null) {
       throw new NullPointerException();
     }
-    this.input = input;
     this.context = context;
-    this.context.length = input.length();
-    this.keywords = new HashMap<>();
-    this.keywords.put("class", Keywords.CLASS);
-    this.keywords.put("function", Keywords.FUNCTION);
-    this.keywords.put("method", Keywords.FUNCTION);
-    this.keywords.put("return", Keywords.RETURN);
-    this.keywords.put("public", Keywords.PUBLIC);
-    this.keywords.put("private", Keywords.PRIVATE);
-    this.keywords.put("protected", Keywords.PROTECTED);
-    this.keywords.put("var", Keywords.VAR);
-    this.keywords.put("do", Keywords.DO);
-    this.keywords.put("while", Keywords.WHILE);
-    this.keywords.put("until", Keywords.UNTIL);
-    this.keywords.put("loop", Keywords.LOOP);
-    this.keywords.put("for", Keywords.FOR);
-    this.keywords.put("break", Keywords.BREAK);
-    this.keywords.put("continue", Keywords.CONTINUE);
-    this.keywords.put("if", Keywords.IF);
-    this.keywords.put("else", Keywords.ELSE);
-    this.keywords.put("elseif", Keywords.ELSEIF);
-    this.keywords.put("switch", Keywords.SWITCH);
-    this.keywords.put("case", Keywords.CASE);
-    this.keywords.put("default", Keywords.DEFAULT);
-    this.keywords.put("null", Keywords.NULL);
-    this.keywords.put("true", Keywords.TRUE);
-    this.keywords.put("false", Keywords.FALSE);
-    this.keywords.put("inline", Keywords.INLINE);
-    this.keywords.put("and", Keywords.AND);
-    this.keywords.put("or", Keywords.OR);
-    this.keywords.put("this", Keywords.THIS);
-    this.keywords.put("on", Keywords.ON);
-    this.keywords.put("error", Keywords.ERROR);
-    this.keywords.put("resume", Keywords.RESUME);
-    this.keywords.put("next", Keywords.NEXT);
+    this.load(input);
+  }
+
+  public Lexer(CharBuffer input) {
+    this(input, new LexerContext());
+  }
+
+  /**
+   * Creates a lexer over the remaining characters of a buffer, which are
+   * copied. The buffer is never written to.
+   *
+   * @param input source to scan
+   * @param context lexer context
+   */
+  public Lexer(CharBuffer input, LexerContext context) {
+    this(input, context, false);
+  }
+
+  private Lexer(CharBuffer input, LexerContext context, boolean adopt) {
+    if (input == null || context == null) {
+      throw new NullPointerException();
+    }
+    this.context = context;
+    this.load(input, adopt);
+  }
+
+  /**
+   * Creates a lexer that scans a buffer in place, without copying it. The
+   * lexer takes the buffer over and writes its sentinel after the limit,
+   * so it is only for buffers nobody else holds, such as one returned by
+   * {@link SourceReader} or one owned by an {@link IncrementalParser}. A
+   * buffer that is not backed by an array starting at its position, with
+   * room after its limit, is copied.
+   *
+   * @param input source to scan, handed over to the lexer
+   * @return lexer over the buffer
+   */
+  static Lexer adopt(CharBuffer input) {
+    return new Lexer(input, new LexerContext(), true);
+  }
+
+  /**
+   * Rewinds the lexer onto new input, reusing this lexer and its
+   * context. Allows a single lexer to process many small sources
+   * without constructing a new one for each. The character buffer is
+   * reused only if the lexer allocated it, and the side table of
+   * comments, if any, is cleared.
+   *
+   * @param input source to scan
+   */
+  public void reset(String input) {
+    if (input == null) {
+      throw new NullPointerException();
+    }
+    this.context.reset();
+    this.load(input);
+    this.lines = null;
+    this.newline = false;
+    if (this.trivia != null) {
+      this.trivia.clear();
+    }
+  }
+
+  private void load(String input) {
+    final int length = input.length();
+    if (this.input == null || this.adopted || this.input.length <= length) {
+      this.input = new char[length + 1];
+      this.adopted = false;
+    }
+    input.getChars(0, length, this.input, 0);
+    this.input[length] = '\0';
+    this.context.length = length;
+  }
+
+  private void load(CharBuffer input, boolean adopt) {
+    final int length = input.remaining();
+    if (adopt
+        && input.hasArray()
+        && !input.isReadOnly()
+        && input.arrayOffset() + input.position() == 0
+        && input.array().length > length) {
+      this.input = input.array();
+      this.adopted = true;
+    } else {
+      this.input = new char[length + 1];
+      this.adopted = false;
+      input.duplicate().get(this.input, 0, length);
+    }
+    this.input[length] = '\0';
+    this.context.length = length;
+  }
+
+  /**
+   * Installs a listener that is told about every scanned token.
+   *
+   * @param metrics listener, or null to disable instrumentation
+   */
+  public void setMetrics(MetricsListener metrics) {
+    this.metrics = metrics;
   }
 
   public LexerContext getContext() {
     return this.context;
   }
 
+  /**
+   * Routes comments into a side table instead of returning them as
+   * tokens, and collapses each run of end-of-line tokens into its first,
+   * so a parser only sees the tokens that matter to the grammar. The
+   * runs are collapsed as the token after an end of line is scanned, so
+   * the lexer never reads further ahead than without the side table.
+   *
+   * The side table does not change the tree a parser builds: ranges
+   * start and end at the tokens of a node, not where the lexer stands.
+   * The table is cleared when the lexer is {@link #reset(String) reset}.
+   *
+   * Not meant for a {@link TokenStream}, which restarts the lexer at
+   * every line.
+   *
+   * @param trivia side table receiving comments, or null to return
+   *               comments and blank lines as tokens
+   */
+  public void setTrivia(Trivia trivia) {
+    this.trivia = trivia;
+    this.newline = false;
+  }
+
+  public Trivia getTrivia() {
+    return this.trivia;
+  }
+
+  /**
+   * Enables the RPGCode 2.x dialect, where a line whose first character
+   * other than whitespace is an asterisk is a comment. Such a line is
+   * scanned as a single comment token, without lexing its contents.
+   *
+   * @param legacyComments whether to recognize asterisk comments
+   */
+  public void setLegacyComments(boolean legacyComments) {
+    this.legacyComments = legacyComments;
+  }
+
+  public boolean isLegacyComments() {
+    return this.legacyComments;
+  }
+
+  /**
+   * Returns the line map of the input, building it on first use. Tokens
+   * only carry offsets; their lines and columns are found through the map.
+   *
+   * @return line map of the input
+   */
+  public LineMap getLineMap() {
+    if (this.lines == null) {
+      this.lines = new LineMap(this.input, this.context.length);
+    }
+    return this.lines;
+  }
+
+  /**
+   * Supplies the line map of the input, for a caller that already keeps
+   * one up to date.
+   *
+   * @param lines line map of the input
+   */
+  public void setLineMap(LineMap lines) {
+    if (lines == null) {
+      throw new NullPointerException();
+    }
+    this.lines = lines;
+  }
+
   public String lexeme(Token token) {
-    return this.input.substring(token.offset, token.offset + token.length);
+    return new String(this.input, token.offset, token.length);
   }
 
   public String lexeme(int offset, int length) {
-    return this.input.substring(offset, offset + length);
+    return new String(this.input, offset, length);
+  }
+
+  /**
+   * Returns the canonical string of a token's lexeme from a symbol table,
+   * which matches the lexeme against the input in place.
+   *
+   * @param token scanned token
+   * @param symbols symbol table
+   * @return interned lexeme
+   */
+  public String lexeme(Token token, SymbolTable symbols) {
+    return symbols.intern(this.input, token.offset, token.length);
   }
 
   public Token scan() {
+    return scan(new Token());
+  }
 
-    skip();
+  /**
+   * Scans the next token into an existing token instance, overwriting
+   * any previous contents. Allows callers to recycle tokens instead of
+   * allocating one per scan.
+   *
+   * @param token token to scan into
+   * @return the given token
+   */
+  public Token scan(final Token token) {
+
+    if (this.trivia == null) {
+      next(token);
+    } else {
+      while (true) {
+        next(token);
+        if (token.kind == TokenKind.COMMENT) {
+          this.trivia.add(token.offset, token.length);
+        } else if (token.kind != TokenKind.EOL || !this.newline) {
+          break;
+        }
+      }
+      this.newline = token.kind == TokenKind.EOL;
+    }
+
+    if (this.metrics != null) {
+      this.metrics.scanned(token);
+    }
 
-    final Token token = new Token();
+    return token;
+
+  }
+
+  private void next(final Token token) {
+
+    skip();
 
-    token.kind = TokenKind.UNKNOWN;
+    token.reset();
     token.offset = this.context.offset;
-    token.line = this.context.line;
-    token.column = this.context.column;
 
     lookahead();
 
     switch (this.context.ch) {
       case '\0':
-        accept();
+        // a null character embedded in the input is consumed, but the
+        // sentinel at the end of the input is never passed
+        if (this.context.offset < this.context.length) {
+          accept();
+        }
         token.kind = TokenKind.END;
         break;
       case '\n':
         accept();
         token.kind = TokenKind.EOL;
-        this.context.line++;
-        this.context.column = 0;
         break;
       case '#':
         accept();
@@ -141,7 +336,7 @@ public class Lexer {
         lookahead();
         token.kind = TokenKind.DOT;
         if (isDigit(this.context.ch)) {
-          number(token);
+          number(token, true);
         }
         break;
       case '(':
@@ -272,6 +467,10 @@ public class Lexer {
         }
         break;
       case '*':
+        if (this.legacyComments && isLineStart(this.context.offset)) {
+          this.comment(token);
+          break;
+        }
         accept();
         lookahead();
         switch (this.context.ch) {
@@ -395,78 +594,124 @@ public class Lexer {
 
     token.length = this.context.offset - token.offset;
 
-    return token;
-
   }
 
+  /**
+   * Consumes the current character. Never moves past the end of the
+   * input.
+   */
   public void accept() {
-    this.context.offset++;
-    this.context.column++;
+    if (this.context.offset < this.context.length) {
+      this.context.offset++;
+    }
   }
 
+  /**
+   * Loads the current character into the context, or a null character
+   * at the end of the input.
+   */
   public void lookahead() {
-    if (this.context.offset < this.context.length) {
-      this.context.ch = this.input.charAt(this.context.offset);
-    } else {
-      this.context.ch = 0;
-    }
+    final int offset = this.context.offset;
+    this.context.ch = offset < this.context.length ? this.input[offset] : '\0';
   }
 
   public void skip() {
-    lookahead();
-    while (isWhitespace(this.context.ch)) {
-      accept();
-      lookahead();
+    final char[] buffer = this.input;
+    int offset = this.context.offset;
+    while (isWhitespace(buffer[offset])) {
+      offset++;
     }
+    advance(offset);
   }
 
   public void string(final Token token) {
     token.kind = TokenKind.STRING;
-    accept();
-    lookahead();
-    while (this.context.ch != '"' && this.context.ch != 0) {
-      accept();
-      lookahead();
+    final char[] buffer = this.input;
+    int offset = this.context.offset + 1;
+    char ch = buffer[offset];
+    while (ch != '"' && ch != 0) {
+      ch = buffer[++offset];
+    }
+    // consume the closing quote, unless the string ran into the sentinel
+    if (offset < this.context.length) {
+      offset++;
     }
-    accept();
+    advance(offset);
   }
 
   public void comment(final Token token) {
     token.kind = TokenKind.COMMENT;
-    accept();
-    lookahead();
-    while (this.context.ch != '\n' && this.context.ch != 0) {
-      accept();
-      lookahead();
+    final char[] buffer = this.input;
+    int offset = this.context.offset + 1;
+    char ch = buffer[offset];
+    while (ch != '\n' && ch != 0) {
+      ch = buffer[++offset];
     }
+    advance(offset);
   }
 
   public void number(final Token token) {
+    number(token, false);
+  }
+
+  /**
+   * Scans a number and decodes its value into the token. The digits are
+   * accumulated in a long; while that stays exact in a double and the
+   * number of decimals is small, a single division by an exact power of
+   * ten gives the correctly rounded value. Anything else falls back to
+   * {@link Double#parseDouble}.
+   *
+   * A number that starts with a decimal point ends at a second one, so
+   * ".5.3" is scanned as ".5" and ".3". Zeros after a leading point belong
+   * to the fraction, so ".05" is a single token; before numbers were
+   * decoded here it was scanned as ".0" and "5".
+   *
+   * @param token token to scan into
+   * @param point whether the decimal point was already consumed
+   */
+  private void number(final Token token, boolean point) {
 
     token.kind = TokenKind.NUMBER;
-    lookahead();
 
-    if (this.context.ch == '0') {
-      accept();
-      lookahead();
-      if (this.context.ch != '.') {
-        return;
-      }
-    }
+    final char[] buffer = this.input;
+    int offset = this.context.offset;
 
-    while (isDigit(this.context.ch)) {
-      accept();
-      lookahead();
+    if (!point && buffer[offset] == '0' && buffer[offset + 1] != '.') {
+      advance(offset + 1);
+      token.value = 0;
+      return;
     }
 
-    if (this.context.ch == '.') {
-      accept();
-      lookahead();
+    long mantissa = 0;
+    int scale = 0;
+    boolean exact = true;
+
+    while (true) {
+      final char ch = buffer[offset];
+      if (isDigit(ch)) {
+        if (mantissa < MAX_EXACT) {
+          mantissa = mantissa * 10 + (ch - '0');
+        } else {
+          exact = false;
+        }
+        if (point) {
+          scale++;
+        }
+      } else if (ch == '.' && !point) {
+        point = true;
+      } else {
+        break;
+      }
+      offset++;
     }
 
-    while (isDigit(this.context.ch)) {
-      accept();
-      lookahead();
+    advance(offset);
+
+    if (exact && mantissa <= MAX_EXACT && scale < POWERS.length) {
+      token.value = mantissa / POWERS[scale];
+    } else {
+      token.value = Double.parseDouble(
+          new String(buffer, token.offset, offset - token.offset));
     }
 
   }
@@ -474,19 +719,20 @@ public class Lexer {
   public void identifier(final Token token) {
 
     token.kind = TokenKind.IDENTIFIER;
-    lookahead();
-    while (isIdentifierPart(this.context.ch)) {
-      accept();
-      lookahead();
-    }
 
-    final String lexeme = lexeme(token.offset, context.offset - token.offset).toLowerCase();
+    final char[] buffer = this.input;
+    int offset = this.context.offset;
+    while (isIdentifierPart(buffer[offset])) {
+      offset++;
+    }
+    advance(offset);
 
     // recognize registered keywords
 
-    final Integer keyword = keywords.get(lexeme);
+    final int keyword = Keywords.find(
+        this.input, token.offset, this.context.offset - token.offset);
 
-    if (keyword != null) {
+    if (keyword != 0) {
       token.kind = TokenKind.KEYWORD;
       token.tag = keyword;
     }
@@ -504,6 +750,27 @@ public class Lexer {
 
   }
 
+  /**
+   * Moves the lexer forward to an offset found by one of the scanning
+   * loops and loads the character at that offset.
+   */
+  private void advance(int offset) {
+    this.context.offset = offset;
+    this.context.ch = this.input[offset];
+  }
+
+  /**
+   * @return whether only whitespace precedes an offset on its line
+   */
+  private boolean isLineStart(int offset) {
+    final char[] buffer = this.input;
+    int i = offset - 1;
+    while (i >= 0 && isWhitespace(buffer[i])) {
+      i--;
+    }
+    return i < 0 || buffer[i] == '\n';
+  }
+
   protected boolean isDigit(int ch) {
     return (ch >= '0' && ch <= '9');
   }
@@ -20,15 +20,15 @@ public class LexerContext {
   public int length;
   public int ch;
   public int offset;
-  public int column;
-  public int line;
 
   public LexerContext() {
+    this.reset();
+  }
+
+  public final void reset() {
     this.length = 0;
     this.ch = 0;
     this.offset = 0;
-    this.column = 0;
-    this.line = 0;
   }
 
 }
@@ -0,0 +1,235 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import java.util.Arrays;
+
+/**
+ * Maps character offsets of a source to zero-based lines and columns.
+ *
+ * The map holds the sorted start offsets of every line and is built once
+ * per source, so tokens only need to carry offsets. A line and column are
+ * found by binary search when they are needed, that is when an error is
+ * reported or a source location is filled in. Lookups tend to move
+ * forward through the source, so the line found last is tried first.
+ *
+ * A line starts after every '\n', including one inside a string literal.
+ *
+ * Not thread-safe.
+ */
+public class LineMap {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  // lines stepped over by line(int, int) before it searches instead
+
+  private static final int SCAN_LIMIT = 8;
+
+  private int[] starts;
+  private int lines;
+  private int last;
+
+  /**
+   * @param text source text
+   */
+  public LineMap(CharSequence text) {
+    if (text == null) {
+      throw new NullPointerException();
+    }
+    this.starts = new int[INITIAL_CAPACITY];
+    this.lines = 1;
+    final int length = text.length();
+    for (int i = 0; i < length; i++) {
+      if (text.charAt(i) == '\n') {
+        add(i + 1);
+      }
+    }
+  }
+
+  /**
+   * @param text source text
+   * @param length number of characters of the text to map
+   */
+  public LineMap(char[] text, int length) {
+    if (text == null) {
+      throw new NullPointerException();
+    }
+    this.starts = new int[INITIAL_CAPACITY];
+    this.lines = 1;
+    for (int i = 0; i < length; i++) {
+      if (text[i] == '\n') {
+        add(i + 1);
+      }
+    }
+  }
+
+  /**
+   * Creates a map from line starts decoded by a {@link UnitReader}. The
+   * array is taken over, not copied.
+   *
+   * @param starts sorted line starts, the first being zero
+   * @param lines number of lines
+   */
+  LineMap(int[] starts, int lines) {
+    if (starts == null) {
+      throw new NullPointerException();
+    }
+    this.starts = starts;
+    this.lines = lines;
+  }
+
+  /**
+   * @return number of lines; an empty source has one
+   */
+  public int size() {
+    return this.lines;
+  }
+
+  /**
+   * @param line zero-based line
+   * @return offset of the first character of the line
+   */
+  public int start(int line) {
+    if (line < 0 || line >= this.lines) {
+      throw new IndexOutOfBoundsException(
+          String.format("line %d of %d", line, this.lines));
+    }
+    return this.starts[line];
+  }
+
+  /**
+   * @param offset character offset
+   * @return zero-based line holding the offset
+   */
+  public int line(int offset) {
+
+    final int[] starts = this.starts;
+    final int last = this.last;
+
+    if (starts[last] <= offset
+        && (last + 1 == this.lines || offset < starts[last + 1])) {
+      return last;
+    }
+
+    int lo = 0;
+    int hi = this.lines - 1;
+
+    while (lo < hi) {
+      final int mid = (lo + hi + 1) >>> 1;
+      if (starts[mid] <= offset) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+
+    this.last = lo;
+
+    return lo;
+
+  }
+
+  /**
+   * Finds the line of an offset, given a line at or shortly before it.
+   * Falls back to {@link #line(int)} if the offset is before the line or
+   * far after it.
+   *
+   * @param offset character offset
+   * @param line zero-based line to search from
+   * @return zero-based line holding the offset
+   */
+  int line(int offset, int line) {
+    final int[] starts = this.starts;
+    if (offset < starts[line]) {
+      return line(offset);
+    }
+    for (int steps = 0; line + 1 < this.lines && starts[line + 1] <= offset; steps++) {
+      if (steps == SCAN_LIMIT) {
+        return line(offset);
+      }
+      line++;
+    }
+    return line;
+  }
+
+  /**
+   * @param offset character offset
+   * @return zero-based column of the offset within its line
+   */
+  public int column(int offset) {
+    return offset - this.starts[line(offset)];
+  }
+
+  /**
+   * Updates the map after an edit of its source. Only the lines from the
+   * edit onwards are touched.
+   *
+   * @param offset start of the edit
+   * @param removed number of characters removed
+   * @param inserted text inserted
+   */
+  public void edit(int offset, int removed, CharSequence inserted) {
+
+    if (inserted == null) {
+      throw new NullPointerException();
+    }
+
+    // line starts inside the removed range go, the ones after it move
+
+    final int first = line(offset) + 1;
+    int next = first;
+
+    while (next < this.lines && this.starts[next] <= offset + removed) {
+      next++;
+    }
+
+    int added = 0;
+    final int length = inserted.length();
+
+    for (int i = 0; i < length; i++) {
+      if (inserted.charAt(i) == '\n') {
+        added++;
+      }
+    }
+
+    final int tail = this.lines - next;
+    final int size = first + added + tail;
+    final int delta = length - removed;
+
+    if (size > this.starts.length) {
+      this.starts = Arrays.copyOf(this.starts,
+          Math.max(size, this.starts.length << 1));
+    }
+
+    System.arraycopy(this.starts, next, this.starts, first + added, tail);
+
+    for (int i = first + added; i < size; i++) {
+      this.starts[i] += delta;
+    }
+
+    int line = first;
+
+    for (int i = 0; i < length; i++) {
+      if (inserted.charAt(i) == '\n') {
+        this.starts[line++] = offset + i + 1;
+      }
+    }
+
+    this.lines = size;
+    this.last = 0;
+
+  }
+
+  private void add(int start) {
+    if (this.lines == this.starts.length) {
+      this.starts = Arrays.copyOf(this.starts, this.lines << 1);
+    }
+    this.starts[this.lines++] = start;
+  }
+
+}
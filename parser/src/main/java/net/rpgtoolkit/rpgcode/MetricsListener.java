@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+/**
+ * Receives instrumentation events from a {@link Lexer} and {@link Parser}.
+ *
+ * A lexer or parser without a metrics listener skips every event, so the
+ * hook costs nothing unless it is installed.
+ *
+ * @see ParserStatistics
+ */
+public interface MetricsListener {
+
+  /**
+   * A token was scanned. The token instance is recycled by the lexer
+   * and must not be retained.
+   *
+   * @param token scanned token
+   */
+  void scanned(Token token);
+
+  /**
+   * A tree node was created.
+   *
+   * @param type type of the node
+   */
+  void created(Class<?> type);
+
+  /**
+   * A top-level class, function or statement was parsed. Separators,
+   * comments and elements that failed to parse are not reported.
+   *
+   * @param line line the element starts on
+   * @param nanos time spent parsing the element, in nanoseconds
+   */
+  void declared(int line, long nanos);
+
+  /**
+   * The parser descended into a nested block or expression.
+   *
+   * @param depth nesting depth reached
+   */
+  void descended(int depth);
+
+  /**
+   * The parser filled a slot of its lookahead buffer.
+   *
+   * @param count number of tokens now buffered
+   */
+  void buffered(int count);
+
+  /**
+   * The parser reported an error.
+   *
+   * @param error reported error
+   */
+  void error(ParseError error);
+
+}
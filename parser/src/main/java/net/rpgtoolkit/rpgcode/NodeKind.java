@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+/**
+ * Kinds of nodes in a {@link FlatTree}. The children of each kind are
+ * listed in order; an absent child is held by an {@link #EMPTY} node.
+ */
+public enum NodeKind {
+
+  /**
+   * Placeholder for an absent child.
+   */
+  EMPTY,
+
+  /**
+   * Name in the payload; classes, then functions.
+   */
+  UNIT,
+
+  /**
+   * Name, then fields, then functions.
+   */
+  CLASS,
+
+  /**
+   * Visibility in the tag; name.
+   */
+  FIELD,
+
+  /**
+   * Visibility, inline and abstract flags in the tag; name, parameters,
+   * then body.
+   */
+  FUNCTION,
+
+  /**
+   * Name.
+   */
+  PARAMETER,
+
+  /**
+   * Statements.
+   */
+  BLOCK,
+
+  /**
+   * Name in the payload.
+   */
+  IDENTIFIER,
+
+  /**
+   * Expression.
+   */
+  EXPRESSION_STATEMENT,
+
+  /**
+   * Condition, then body.
+   */
+  CONDITIONAL,
+
+  /**
+   * Loop kind in the tag; condition, then body.
+   */
+  LOOP,
+
+  /**
+   * Initial, condition and iterator expressions, then body.
+   */
+  FOR_LOOP,
+
+  /**
+   * Expression.
+   */
+  RETURN,
+
+  /**
+   * Name.
+   */
+  LABEL,
+
+  /**
+   * Flow control kind in the tag.
+   */
+  FLOW_CONTROL,
+
+  /**
+   * Error handler kind in the tag.
+   */
+  ERROR_HANDLER,
+
+  /**
+   * Operator in the tag; left, then right.
+   */
+  ASSIGNMENT,
+  LOGICAL,
+  RELATIONAL,
+  SHIFT,
+  ADDITIVE,
+  MULTIPLICATIVE,
+
+  /**
+   * Operator in the tag; operand.
+   */
+  UNARY,
+
+  /**
+   * Operator in the tag; identifier.
+   */
+  POSTFIX,
+
+  /**
+   * Function identifier, then arguments.
+   */
+  CALL,
+
+  /**
+   * Identifier, then index.
+   */
+  INDEX,
+
+  /**
+   * Value in the payload.
+   */
+  NUMBER,
+
+  /**
+   * Value in the payload.
+   */
+  STRING,
+
+  /**
+   * Value in the tag.
+   */
+  BOOLEAN
+
+}
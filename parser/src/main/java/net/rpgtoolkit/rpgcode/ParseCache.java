@@ -0,0 +1,471 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import java.io.*;
+import java.nio.CharBuffer;
+import java.util.*;
+
+/**
+ * Persistent, size-bounded cache of parse results, stored as one file per
+ * entry in a cache directory.
+ *
+ * Entries are keyed by a hash of the source text, the options of the lexer
+ * and {@link Parser#VERSION}, so an entry is never reused across parser
+ * versions or for a differently configured lexer. A path index records
+ * the modification time, size and content hash last seen for each source
+ * file, which lets an unchanged file be resolved to its entry without
+ * reading it. Entries are evicted least recently used first once the cache
+ * grows beyond its capacity.
+ *
+ * Thread-safe.
+ */
+public class ParseCache {
+
+  private static final int MAGIC = 0x52504743;
+  private static final String INDEX = "index";
+  private static final String SUFFIX = ".parse";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /**
+   * Lexer option: comments are routed to a {@link Trivia} side table.
+   */
+  public static final int TRIVIA = 1;
+
+  /**
+   * Lexer option: RPGCode 2.x asterisk comments are recognized.
+   */
+  public static final int LEGACY_COMMENTS = 2;
+
+  /**
+   * A cached parse result.
+   */
+  public static class Entry {
+
+    private final boolean success;
+    private final List<ParseError> errors;
+    private final byte[] unit;
+
+    public Entry(boolean success, List<ParseError> errors, byte[] unit) {
+      if (errors == null) {
+        throw new NullPointerException();
+      }
+      this.success = success;
+      this.errors = Collections.unmodifiableList(new ArrayList<>(errors));
+      this.unit = unit;
+    }
+
+    public boolean isSuccess() {
+      return this.success;
+    }
+
+    public List<ParseError> getErrors() {
+      return this.errors;
+    }
+
+    /**
+     * @return compilation unit encoded by a {@link UnitWriter}, or null if
+     * the entry only records the outcome of the parse
+     */
+    public byte[] getUnit() {
+      return this.unit;
+    }
+
+  }
+
+  private static class Record {
+
+    final long modified;
+    final long size;
+    final long hash;
+    final int options;
+
+    Record(long modified, long size, long hash, int options) {
+      this.modified = modified;
+      this.size = size;
+      this.hash = hash;
+      this.options = options;
+    }
+
+  }
+
+  private final File directory;
+  private final long capacity;
+  private final Map<String, Record> index;
+  private final LinkedHashMap<Long, Long> entries;
+  private long size;
+  private long hits;
+  private long misses;
+
+  /**
+   * Opens (or creates) a cache in a directory.
+   *
+   * @param directory cache directory
+   * @param capacity maximum total size of all entries, in bytes
+   * @throws IOException if the directory cannot be created
+   */
+  public ParseCache(File directory, long capacity) throws IOException {
+
+    if (directory == null) {
+      throw new NullPointerException();
+    }
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException(String.format(
+          "unable to create cache directory %s", directory));
+    }
+
+    this.directory = directory;
+    this.capacity = capacity;
+    this.index = new HashMap<>();
+    this.entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    loadEntries();
+    loadIndex();
+
+  }
+
+  /**
+   * Returns the options of a lexer that change the result of parsing.
+   *
+   * @param lexer lexer
+   * @return combination of {@link #TRIVIA} and {@link #LEGACY_COMMENTS}
+   */
+  public static int options(Lexer lexer) {
+    return (lexer.getTrivia() != null ? TRIVIA : 0)
+        | (lexer.isLegacyComments() ? LEGACY_COMMENTS : 0);
+  }
+
+  /**
+   * Computes the cache key of a source: a 64-bit FNV-1a hash of its
+   * characters, seeded with the parser version and the options of the
+   * lexer that parses it, since both change the result.
+   *
+   * @param source source text
+   * @param options lexer options the source is parsed with
+   * @return content hash
+   */
+  public static long hash(CharBuffer source, int options) {
+    long hash = 0xcbf29ce484222325L ^ Parser.VERSION;
+    hash ^= options;
+    hash *= 0x100000001b3L;
+    final int limit = source.limit();
+    for (int i = source.position(); i < limit; i++) {
+      hash ^= source.get(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * Looks up a file by its path, modification time and size alone. Does
+   * not read the file.
+   *
+   * @param file source file
+   * @param options lexer options the file would be parsed with
+   * @return cached entry, or null if the file changed or is unknown
+   */
+  public Entry get(File file, int options) {
+
+    final Record record;
+
+    synchronized (this) {
+      record = this.index.get(file.getPath());
+    }
+
+    if (record == null
+        || record.modified != file.lastModified()
+        || record.size != file.length()
+        || record.options != options) {
+      return null;
+    }
+
+    return load(record.hash, false);
+
+  }
+
+  /**
+   * Looks up a file by the hash of its content and, on a hit, remembers
+   * the file's modification time and size for {@link #get(File, int)}.
+   *
+   * @param file source file
+   * @param hash content hash of the file
+   * @param options lexer options the hash was computed with
+   * @return cached entry, or null if none exists
+   */
+  public Entry get(File file, long hash, int options) {
+
+    final Entry entry = load(hash, true);
+
+    if (entry != null) {
+      remember(file, hash, options);
+    }
+
+    return entry;
+
+  }
+
+  /**
+   * Stores the result of parsing a file.
+   *
+   * @param file source file
+   * @param hash content hash of the file
+   * @param options lexer options the file was parsed with
+   * @param entry parse result
+   */
+  public void put(File file, long hash, int options, Entry entry) {
+
+    final File target = entryFile(hash);
+    final File temp;
+    final long length;
+
+    // writers of the same hash race each other, so each gets its own
+    // temporary file
+
+    try {
+      temp = File.createTempFile(String.format("%016x", hash), TEMP_SUFFIX, this.directory);
+    } catch (IOException ex) {
+      return;
+    }
+
+    try (final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(Parser.VERSION);
+      out.writeLong(hash);
+      out.writeBoolean(entry.isSuccess());
+      out.writeInt(entry.getErrors().size());
+      for (final ParseError error : entry.getErrors()) {
+        out.writeInt(error.getLine());
+        out.writeInt(error.getColumn());
+        out.writeUTF(error.getMessage());
+      }
+      final byte[] unit = entry.getUnit();
+      out.writeInt(unit != null ? unit.length : -1);
+      if (unit != null) {
+        out.write(unit);
+      }
+      length = out.size();
+    } catch (IOException ex) {
+      temp.delete();
+      return;
+    }
+
+    synchronized (this) {
+      target.delete();
+      if (!temp.renameTo(target)) {
+        temp.delete();
+        return;
+      }
+      final Long previous = this.entries.put(hash, length);
+      this.size += length - (previous != null ? previous : 0);
+      evict();
+    }
+
+    remember(file, hash, options);
+
+  }
+
+  public synchronized long getHits() {
+    return this.hits;
+  }
+
+  public synchronized long getMisses() {
+    return this.misses;
+  }
+
+  /**
+   * Persists the path index. Records that refer to evicted entries are
+   * dropped.
+   *
+   * @throws IOException if the index cannot be written
+   */
+  public synchronized void save() throws IOException {
+
+    final File target = new File(this.directory, INDEX);
+    final File temp = new File(this.directory, INDEX + TEMP_SUFFIX);
+
+    try (final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(Parser.VERSION);
+      int count = 0;
+      for (final Record record : this.index.values()) {
+        if (this.entries.containsKey(record.hash)) {
+          count++;
+        }
+      }
+      out.writeInt(count);
+      for (final Map.Entry<String, Record> e : this.index.entrySet()) {
+        final Record record = e.getValue();
+        if (this.entries.containsKey(record.hash)) {
+          out.writeUTF(e.getKey());
+          out.writeLong(record.modified);
+          out.writeLong(record.size);
+          out.writeLong(record.hash);
+          out.writeInt(record.options);
+        }
+      }
+    }
+
+    target.delete();
+    if (!temp.renameTo(target)) {
+      throw new IOException(String.format("unable to write %s", target));
+    }
+
+  }
+
+  private Entry load(long hash, boolean counted) {
+
+    final File file = entryFile(hash);
+
+    synchronized (this) {
+      // touch the entry so it becomes the most recently used
+      if (this.entries.get(hash) == null) {
+        if (counted) {
+          this.misses++;
+        }
+        return null;
+      }
+    }
+
+    Entry entry = null;
+
+    try (final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() == MAGIC
+          && in.readInt() == Parser.VERSION
+          && in.readLong() == hash) {
+        final boolean success = in.readBoolean();
+        final int count = in.readInt();
+        final List<ParseError> errors = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          final int line = in.readInt();
+          final int column = in.readInt();
+          errors.add(new ParseError(line, column, in.readUTF()));
+        }
+        final int length = in.readInt();
+        byte[] unit = null;
+        if (length >= 0) {
+          unit = new byte[length];
+          in.readFully(unit);
+        }
+        entry = new Entry(success, errors, unit);
+      }
+    } catch (IOException ex) {
+      entry = null;
+    }
+
+    synchronized (this) {
+      if (entry != null) {
+        this.hits++;
+        file.setLastModified(System.currentTimeMillis());
+      } else {
+        if (counted) {
+          this.misses++;
+        }
+        final Long length = this.entries.remove(hash);
+        if (length != null) {
+          this.size -= length;
+        }
+        file.delete();
+      }
+    }
+
+    return entry;
+
+  }
+
+  private synchronized void remember(File file, long hash, int options) {
+    this.index.put(file.getPath(),
+        new Record(file.lastModified(), file.length(), hash, options));
+  }
+
+
+  private void evict() {
+    final Iterator<Map.Entry<Long, Long>> it = this.entries.entrySet().iterator();
+    while (this.size > this.capacity && it.hasNext()) {
+      final Map.Entry<Long, Long> eldest = it.next();
+      entryFile(eldest.getKey()).delete();
+      this.size -= eldest.getValue();
+      it.remove();
+    }
+  }
+
+  private File entryFile(long hash) {
+    return new File(this.directory, String.format("%016x%s", hash, SUFFIX));
+  }
+
+  private void loadEntries() {
+
+    final File[] files = this.directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+
+    if (files == null) {
+      return;
+    }
+
+    // oldest access first, which is the iteration order of the LRU map
+
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+
+    for (final File file : files) {
+      final String name = file.getName();
+      try {
+        if (name.length() != 16 + SUFFIX.length()) {
+          throw new NumberFormatException(name);
+        }
+        final long hash = (Long.parseLong(name.substring(0, 8), 16) << 32)
+            | Long.parseLong(name.substring(8, 16), 16);
+        this.entries.put(hash, file.length());
+        this.size += file.length();
+      } catch (NumberFormatException ex) {
+        file.delete();
+      }
+    }
+
+  }
+
+  private void loadIndex() {
+
+    final File file = new File(this.directory, INDEX);
+
+    if (!file.isFile()) {
+      return;
+    }
+
+    try (final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != Parser.VERSION) {
+        return;
+      }
+      final int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        final String path = in.readUTF();
+        final long modified = in.readLong();
+        final long size = in.readLong();
+        final long hash = in.readLong();
+        final int options = in.readInt();
+        this.index.put(path, new Record(modified, size, hash, options));
+      }
+    } catch (IOException ex) {
+      this.index.clear();
+    }
+
+  }
+
+}
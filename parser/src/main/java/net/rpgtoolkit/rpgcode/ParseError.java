@@ -6,8 +6,9 @@ public class ParseError {
     private final int column;
     private final String message;
 
-    public static ParseError build(Token token, String message) {
-        return new ParseError(token.line, token.column, message);
+    public static ParseError build(LineMap lines, Token token, String message) {
+        return new ParseError(
+            lines.line(token.offset), lines.column(token.offset), message);
     }
 
     public ParseError(int line, int column, String msg) {
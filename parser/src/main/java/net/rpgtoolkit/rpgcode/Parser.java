@@ -18,10 +18,73 @@ import java.util.*;
  */
 public class Parser {
 
+  /**
+   * Version of the parser and the tree it produces. Must be incremented
+   * whenever a change to the grammar or the parser alters the result of
+   * parsing a source, since it invalidates persisted parse results.
+   */
+  public static final int VERSION = 7;
+
+  // capacity of the lookahead ring buffer; must be a power of two
+  // greater than the maximum lookahead required by the grammar. tokens
+  // in the buffer are recycled, so a token returned by accept() is only
+  // valid until the buffer wraps around
+
+  private static final int LOOKAHEAD = 4;
+  private static final int LOOKAHEAD_MASK = LOOKAHEAD - 1;
+
+  // binding power of each binary operator by token kind ordinal, zero for
+  // tokens that are not binary operators
+
+  private static final int ASSIGNMENT = 1;
+  private static final int LOGICAL = 2;
+  private static final int RELATIONAL = 3;
+  private static final int SHIFT = 4;
+  private static final int ADDITIVE = 5;
+  private static final int MULTIPLICATIVE = 6;
+
+  private static final int[] PRECEDENCE = new int[TokenKind.values().length];
+
+  static {
+    for (final TokenKind kind : TokenKind.values()) {
+      final long bit = TokenSet.bit(kind);
+      if ((bit & TokenSet.ASSIGNMENT) != 0)
+        PRECEDENCE[kind.ordinal()] = ASSIGNMENT;
+      else if ((bit & TokenSet.LOGICAL) != 0)
+        PRECEDENCE[kind.ordinal()] = LOGICAL;
+      else if ((bit & TokenSet.RELATIONAL) != 0)
+        PRECEDENCE[kind.ordinal()] = RELATIONAL;
+      else if ((bit & TokenSet.SHIFT) != 0)
+        PRECEDENCE[kind.ordinal()] = SHIFT;
+      else if ((bit & TokenSet.ADDITIVE) != 0)
+        PRECEDENCE[kind.ordinal()] = ADDITIVE;
+      else if ((bit & TokenSet.MULTIPLICATIVE) != 0)
+        PRECEDENCE[kind.ordinal()] = MULTIPLICATIVE;
+    }
+  }
+
+  private static final int STACK_CAPACITY = 16;
+
   private final Lexer lexer;
-  private final LinkedList<Token> tokens;
+  private final Token[] tokens;
   private final Set<ParserListener> listeners;
   private final SourceLocationBuilder loc;
+  private SymbolTable symbols;
+  private MetricsListener metrics;
+  private int head;
+  private int count;
+  private int depth;
+
+  // operand and operator stacks of the expression parser, with the
+  // position each entry started at. nested expressions push their frame
+  // above the frame of the enclosing expression
+
+  private Expression[] operands;
+  private int[] operandMarks;
+  private int operandCount;
+  private TokenKind[] operatorKinds;
+  private int[] operatorMarks;
+  private int operatorCount;
 
   public Parser(Lexer lexer) {
 
@@ -30,9 +93,19 @@ public class Parser {
     }
 
     this.lexer = lexer;
-    this.tokens = new LinkedList<>();
+    this.tokens = new Token[LOOKAHEAD];
+    for (int i = 0; i < LOOKAHEAD; i++) {
+      this.tokens[i] = new Token();
+    }
+    this.head = 0;
+    this.count = 0;
     this.listeners = new HashSet<>();
     this.loc = new SourceLocationBuilder(this.lexer);
+    this.symbols = new SymbolTable();
+    this.operands = new Expression[STACK_CAPACITY];
+    this.operandMarks = new int[STACK_CAPACITY];
+    this.operatorKinds = new TokenKind[STACK_CAPACITY];
+    this.operatorMarks = new int[STACK_CAPACITY];
 
   }
 
@@ -45,53 +118,132 @@ public class Parser {
     listeners.remove(listener);
   }
 
+  /**
+   * Installs a listener that receives instrumentation events from this
+   * parser and its lexer. Without one, no instrumentation is done, and
+   * nesting depth is not tracked, so install it before parsing.
+   *
+   * @param metrics listener, or null to disable instrumentation
+   */
+  public void setMetrics(MetricsListener metrics) {
+    this.metrics = metrics;
+    this.lexer.setMetrics(metrics);
+  }
+
+  /**
+   * Shares a symbol table with other parsers, so that names and string
+   * literals are interned across all of their sources. By default each
+   * parser has a table of its own.
+   *
+   * @param symbols symbol table
+   */
+  public void setSymbolTable(SymbolTable symbols) {
+    if (symbols == null) {
+      throw new NullPointerException();
+    }
+    this.symbols = symbols;
+  }
+
+  public SymbolTable getSymbolTable() {
+    return this.symbols;
+  }
+
   public CompilationUnit parse() {
 
-    final CompilationUnit node = new CompilationUnit(loc.newRange(), "???");
+    final CompilationUnit node = created(new CompilationUnit(loc.newRange(), "???"));
 
-    while (!match(TokenKind.END)) {
+    // the unit spans the whole input, up to where the lexer stops
 
-      if (match(TokenKind.COMMENT)) {
-        accept();
-        continue;
-      }
+    depth = 0;
 
-      if (match(TokenKind.KEYWORD, Keywords.CLASS)) {
-        final ClassDeclaration decl = parseClassDeclaration();
-        if (decl != null)
-          node.getClassDeclarations().add(decl);
-      } else if (match(TokenKind.KEYWORD, Keywords.FUNCTION) || match(TokenKind.KEYWORD, Keywords.INLINE)) {
-        final FunctionDeclaration decl = parseFunctionDeclaration();
-        if (decl != null)
-          node.getFunctionDeclarations().add(decl);
-      } else if (matchAny(TokenKind.EOL, TokenKind.SEMICOLON)) {
-        accept();
+    while (!match(TokenKind.END)) {
+      if (metrics == null) {
+        parseDeclaration(node);
       } else {
-        final Statement stmt = parseStatement();
-        if (stmt == null) {
-          error("unexpected token in program body");
-          accept();
+        final int offset = lookahead(0).offset;
+        final long start = System.nanoTime();
+        if (parseElement(node)) {
+          metrics.declared(lexer.getLineMap().line(offset), System.nanoTime() - start);
         }
       }
-
     }
 
-    loc.end(node.getSourceRange());
+    loc.set(node.getSourceRange().getEndLocation());
 
     return node;
 
   }
 
+  /**
+   * Parses the next top-level element of a program: a class, a function,
+   * a statement or a single comment or statement separator. Declarations
+   * are added to the given compilation unit.
+   *
+   * @param unit compilation unit receiving declarations
+   */
+  public void parseDeclaration(CompilationUnit unit) {
+
+    parseElement(unit);
+
+  }
+
+  /**
+   * @return whether a class, function or statement was parsed, as opposed
+   * to a separator, a comment or an error
+   */
+  private boolean parseElement(CompilationUnit unit) {
+
+    if (match(TokenKind.COMMENT)) {
+      accept();
+      return false;
+    }
+
+    if (match(TokenKind.KEYWORD, Keywords.CLASS)) {
+      final ClassDeclaration decl = parseClassDeclaration();
+      if (decl != null)
+        unit.getClassDeclarations().add(decl);
+      return decl != null;
+    } else if (match(TokenKind.KEYWORD, Keywords.FUNCTION) || match(TokenKind.KEYWORD, Keywords.INLINE)) {
+      final FunctionDeclaration decl = parseFunctionDeclaration();
+      if (decl != null)
+        unit.getFunctionDeclarations().add(decl);
+      return decl != null;
+    } else if (matchAny(TokenSet.TERMINATORS)) {
+      accept();
+      return false;
+    } else {
+      final Statement stmt = parseStatement();
+      if (stmt == null) {
+        error("unexpected token in program body");
+        accept();
+      }
+      return stmt != null;
+    }
+
+  }
+
+  /**
+   * @return the next unconsumed token; the instance is recycled once the
+   * parser advances
+   */
+  Token peek() {
+    return lookahead(0);
+  }
+
+  SourceLocationBuilder getLocationBuilder() {
+    return loc;
+  }
+
   public ClassFieldDeclaration parseClassFieldDeclaration() {
 
-    final SourceRange range = loc.newRange();
+    final SourceRange range = newRange();
 
     if (match(TokenKind.KEYWORD, Keywords.VAR)) {
       accept();
     }
 
     final Identifier name = parseIdentifier();
-    final ClassFieldDeclaration node = new ClassFieldDeclaration(range, name);
+    final ClassFieldDeclaration node = created(new ClassFieldDeclaration(range, name));
 
     expectEndofStatement();
 
@@ -103,12 +255,12 @@ public class Parser {
 
   public ClassDeclaration parseClassDeclaration() {
 
-    final SourceRange range = loc.newRange();
+    final SourceRange range = newRange();
 
     expect(TokenKind.KEYWORD, Keywords.CLASS);
 
     final Identifier name = parseIdentifier();
-    final ClassDeclaration node = new ClassDeclaration(range, name);
+    final ClassDeclaration node = created(new ClassDeclaration(range, name));
 
     // TODO: parse inheritance list
 
@@ -117,7 +269,7 @@ public class Parser {
 
     Visibility currentVisibility = Visibility.PUBLIC;
 
-    while (!matchAny(TokenKind.BRACE_RIGHT, TokenKind.END)) {
+    while (!matchAny(TokenSet.BLOCK_END)) {
 
       skip();
 
@@ -186,7 +338,7 @@ public class Parser {
 
     boolean inline = false;
 
-    final SourceRange range = loc.newRange();
+    final SourceRange range = newRange();
 
     if (match(TokenKind.KEYWORD, Keywords.INLINE)) {
       accept();
@@ -196,13 +348,13 @@ public class Parser {
     expect(TokenKind.KEYWORD, Keywords.FUNCTION);
 
     final Identifier name = parseIdentifier();
-    final FunctionDeclaration node = new FunctionDeclaration(range, name);
+    final FunctionDeclaration node = created(new FunctionDeclaration(range, name));
 
     node.setIsInline(inline);
 
     expect(TokenKind.PAREN_LEFT);
 
-    while (!matchAny(TokenKind.PAREN_RIGHT, TokenKind.END)) {
+    while (!matchAny(TokenSet.LIST_END)) {
 
       final Parameter param = parseParameter();
       if (param != null)
@@ -234,17 +386,20 @@ public class Parser {
 
   private Block parseBlock() {
 
-    final SourceRange range = loc.newRange();
-    final Block node = new Block(SourceRange.empty());
+    final Block node = created(new Block(SourceRange.empty()));
     final NodeCollection<Statement> statements = node.getStatements();
 
+    if (metrics != null) {
+      metrics.descended(++depth);
+    }
+
     expect(TokenKind.BRACE_LEFT);
 
     while (true) {
 
       skip();
 
-      if (!matchAny(TokenKind.BRACE_RIGHT, TokenKind.END)) {
+      if (!matchAny(TokenSet.BLOCK_END)) {
         final Statement stmt = parseStatement();
         statements.add(stmt);
       } else {
@@ -255,7 +410,9 @@ public class Parser {
 
     expect(TokenKind.BRACE_RIGHT);
 
-    loc.end(range);
+    if (metrics != null) {
+      depth--;
+    }
 
     return node;
 
@@ -264,10 +421,11 @@ public class Parser {
   public Statement parseStatement() {
 
     // parse comments from the ancient 2.x version of the grammar
-    // where asterisk starts a comment
+    // where asterisk starts a comment. a lexer with legacy comments
+    // enabled returns these lines as single comment tokens instead
 
     if (match(TokenKind.MULTIPLY)) {
-      while (!matchAny(TokenKind.EOL, TokenKind.END)) {
+      while (!matchAny(TokenSet.LINE_END)) {
         accept();
       }
     }
@@ -304,51 +462,45 @@ public class Parser {
 
   public FlowControlStatement parseContinueStatement() {
 
-    final SourceRange range = loc.newRange();
+    final int start = mark();
 
     expect(TokenKind.KEYWORD, Keywords.CONTINUE);
     expectEndofStatement();
 
-    loc.end(range);
-
-    return new FlowControlStatement(
-        range, FlowControlStatement.FlowControlKind.CONTINUE);
+    return created(new FlowControlStatement(
+        loc.range(start), FlowControlStatement.FlowControlKind.CONTINUE));
 
   }
 
   public FlowControlStatement parseBreakStatement() {
 
-    final SourceRange range = loc.newRange();
+    final int start = mark();
 
     expect(TokenKind.KEYWORD, Keywords.BREAK);
     expectEndofStatement();
 
-    loc.end(range);
-
-    return new FlowControlStatement(
-        range, FlowControlStatement.FlowControlKind.BREAK);
+    return created(new FlowControlStatement(
+        loc.range(start), FlowControlStatement.FlowControlKind.BREAK));
 
   }
 
   public ErrorHandlerStatement parseErrorHandlerStatement() {
 
-    final SourceRange range = loc.newRange();
+    final int start = mark();
 
     expect(TokenKind.KEYWORD, Keywords.ON);
     expect(TokenKind.KEYWORD, Keywords.ERROR);
     expect(TokenKind.KEYWORD, Keywords.RESUME);
     expect(TokenKind.KEYWORD, Keywords.NEXT);
 
-    loc.end(range);
-
-    return new ErrorHandlerStatement(
-        range, ErrorHandlerStatement.ErrorHandlerKind.RESUME);
+    return created(new ErrorHandlerStatement(
+        loc.range(start), ErrorHandlerStatement.ErrorHandlerKind.RESUME));
 
   }
 
   public ExpressionStatement parseExpressionStatement() {
 
-    final SourceRange range = loc.newRange();
+    final int start = mark();
     final Expression expr = parseExpression();
 
     if (expr == null) {
@@ -358,9 +510,7 @@ public class Parser {
 
     expectEndofStatement();
 
-    loc.end(range);
-
-    return new ExpressionStatement(range, expr);
+    return created(new ExpressionStatement(loc.range(start), expr));
 
   }
 
@@ -370,7 +520,7 @@ public class Parser {
     Expression condition = null;
     Expression post = null;
 
-    final SourceRange range = loc.newRange();
+    final int start = mark();
 
     expect(TokenKind.KEYWORD, Keywords.FOR);
     expect(TokenKind.PAREN_LEFT);
@@ -395,25 +545,23 @@ public class Parser {
     skip();
 
     final Block body = parseBlock();
-    final ForLoopStatement node = new ForLoopStatement(range);
+    final ForLoopStatement node = created(new ForLoopStatement(loc.range(start)));
 
     node.setInitialExpression(initial);
     node.setConditionExpression(condition);
     node.setIteratorExpression(post);
     node.setBody(body);
 
-    loc.end(range);
-
     return node;
 
   }
 
   public LabelStatement parseLabelStatement() {
 
-    final SourceRange range = loc.newRange();
+    final SourceRange range = newRange();
 
     final Identifier name = parseIdentifier();
-    final LabelStatement node = new LabelStatement(range, name);
+    final LabelStatement node = created(new LabelStatement(range, name));
 
     expect(TokenKind.COLON);
     expectEndofStatement();
@@ -428,7 +576,7 @@ public class Parser {
 
     // TODO: for statement body parse block or single statement
 
-    final SourceRange range = loc.newRange();
+    final SourceRange range = newRange();
 
     expect(TokenKind.KEYWORD, Keywords.UNTIL);
     expect(TokenKind.PAREN_LEFT);
@@ -438,7 +586,7 @@ public class Parser {
     expect(TokenKind.PAREN_RIGHT);
     skip();
 
-    final LoopStatement node = new LoopStatement(range, LoopStatement.LoopKind.UNTIL, condition);
+    final LoopStatement node = created(new LoopStatement(range, LoopStatement.LoopKind.UNTIL, condition));
     final Block body = parseBlock();
 
     node.setBody(body);
@@ -451,7 +599,7 @@ public class Parser {
 
   public LoopStatement parseWhileStatement() {
 
-    final SourceRange range = loc.newRange();
+    final SourceRange range = newRange();
 
     // TODO: for statement body parse block or single statement
 
@@ -463,7 +611,7 @@ public class Parser {
     expect(TokenKind.PAREN_RIGHT);
     skip();
 
-    final LoopStatement node = new LoopStatement(range, LoopStatement.LoopKind.WHILE, condition);
+    final LoopStatement node = created(new LoopStatement(range, LoopStatement.LoopKind.WHILE, condition));
     final Block body = parseBlock();
 
     node.setBody(body);
@@ -476,7 +624,7 @@ public class Parser {
 
   public LoopStatement parseDoWhileStatement() {
 
-    final SourceRange range = loc.newRange();
+    final int start = mark();
 
     // TODO: for statement body parse block or single statement
 
@@ -494,19 +642,17 @@ public class Parser {
     expect(TokenKind.PAREN_RIGHT);
     expectEndofStatement();
 
-    final LoopStatement node = new LoopStatement(range, LoopStatement.LoopKind.DO, condition);
+    final LoopStatement node = created(new LoopStatement(loc.range(start), LoopStatement.LoopKind.DO, condition));
 
     node.setBody(body);
 
-    loc.end(range);
-
     return node;
 
   }
 
   public ConditionalStatement parseConditionalStatement() {
 
-    final SourceRange range = loc.newRange();
+    final SourceRange range = newRange();
 
     // TODO: for statement body parse block or single statement
 
@@ -519,7 +665,7 @@ public class Parser {
     skip();
 
     final Block body = parseBlock();
-    final ConditionalStatement node = new ConditionalStatement(range, condition, body);
+    final ConditionalStatement node = created(new ConditionalStatement(range, condition, body));
 
     skip();
 
@@ -546,13 +692,13 @@ public class Parser {
 
   public ReturnStatement parseReturnStatement() {
 
-    final SourceRange range = loc.newRange();
+    final SourceRange range = newRange();
 
     expect(TokenKind.KEYWORD, Keywords.RETURN);
 
-    final ReturnStatement node = new ReturnStatement(range);
+    final ReturnStatement node = created(new ReturnStatement(range));
 
-    if (!matchAny(TokenKind.EOL, TokenKind.SEMICOLON)) {
+    if (!matchAny(TokenSet.TERMINATORS)) {
       final Expression rhs = parseExpression();
       node.setExpression(rhs);
     }
@@ -565,290 +711,273 @@ public class Parser {
 
   }
 
+  /**
+   * Parses an expression by precedence climbing.
+   *
+   * Operands and pending operators are kept on explicit stacks instead of
+   * the call stack, so long chains of operators do not recurse. Binary
+   * operators are left-associative and assignment is right-associative.
+   * Only parenthesized expressions, call arguments and indices recurse,
+   * and they push their own frame above the enclosing one.
+   *
+   * @return expression, or null if none could be parsed
+   */
   public Expression parseExpression() {
 
-    return parseAssignmentExpression();
-
-  }
-
-  public Expression parseNegationExpression() {
-
-    return parsePrimaryExpression();
+    if (metrics != null) {
+      metrics.descended(++depth);
+    }
 
-  }
+    final int operandBase = operandCount;
+    final int operatorBase = operatorCount;
 
-  public Expression parseUnaryExpression() {
+    while (true) {
 
-    if (!matchAny(TokenKind.PLUS, TokenKind.MINUS)) {
-      return parseNegationExpression();
-    }
+      final int slot = pushOperand();
+      operands[slot] = parseUnaryExpression();
 
-    final SourceRange range = loc.newRange();
-    final Token token = accept();
-    final UnaryExpression.Operator op;
+      final TokenKind kind = lookahead(0).kind;
+      final int precedence = PRECEDENCE[kind.ordinal()];
 
-    switch (token.kind) {
-      case PLUS:
-        op = UnaryExpression.Operator.POSITIVE;
+      if (precedence == 0) {
         break;
-      case MINUS:
-        op = UnaryExpression.Operator.NEGATIVE;
-        break;
-      default:
-        error("unrecognized unary operator");
-        return null;
-    }
-
-    final Expression expr = parseUnaryExpression();
-
-    loc.end(range);
+      }
 
-    return new UnaryExpression(range, op, expr);
+      if (kind == TokenKind.ASSIGN_POW) {
+        accept();
+        error("unrecognized assignment operator");
+        while (operandCount > operandBase)
+          operands[--operandCount] = null;
+        operatorCount = operatorBase;
+        return leave(null);
+      }
 
-  }
+      // reduce the pending operators that bind at least as tightly,
+      // except that assignment groups to the right
 
-  public Expression parseMultiplicativeExpression() {
+      while (operatorCount > operatorBase) {
+        final int top = PRECEDENCE[operatorKinds[operatorCount - 1].ordinal()];
+        if (top < precedence || (top == precedence && precedence == ASSIGNMENT)) {
+          break;
+        }
+        reduce();
+      }
 
-    final SourceRange range = loc.newRange();
-    final Expression lhs = parseUnaryExpression();
+      pushOperator(accept().kind);
 
-    if (!matchAny(TokenKind.MULTIPLY, TokenKind.DIVIDE, TokenKind.DIVIDE_INT, TokenKind.MODULUS)) {
-      return lhs;
     }
 
-    final Token token = accept();
-    final MultiplicativeBinaryExpression.Operator op;
-
-    switch (token.kind) {
-      case MULTIPLY:
-        op = MultiplicativeBinaryExpression.Operator.MULTIPLY;
-        break;
-      case DIVIDE:
-        op = MultiplicativeBinaryExpression.Operator.DIVIDE;
-        break;
-      case DIVIDE_INT:
-        op = MultiplicativeBinaryExpression.Operator.DIVIDE_INT;
-        break;
-      case MODULUS:
-        op = MultiplicativeBinaryExpression.Operator.MODULUS;
-        break;
-      default:
-        error("unrecognized multiplicative operator");
-        return null;
+    while (operatorCount > operatorBase) {
+      reduce();
     }
 
-    final Expression rhs = parseMultiplicativeExpression();
-
-    loc.end(range);
+    final Expression expr = operands[--operandCount];
+    operands[operandCount] = null;
 
-    return new MultiplicativeBinaryExpression(range, op, lhs, rhs);
+    return leave(expr);
 
   }
 
-  public Expression parseAdditiveExpression() {
+  private Expression leave(Expression expr) {
+    if (metrics != null) {
+      depth--;
+    }
+    return expr;
+  }
 
-    final SourceRange range = loc.newRange();
-    final Expression lhs = parseMultiplicativeExpression();
+  /**
+   * Parses a primary expression with any number of prefix sign
+   * operators, without recursing on the operators.
+   *
+   * @return expression, or null if none could be parsed
+   */
+  public Expression parseUnaryExpression() {
 
-    if (!matchAny(TokenKind.PLUS, TokenKind.MINUS)) {
-      return lhs;
+    if (!matchAny(TokenSet.SIGNS)) {
+      return parsePrimaryExpression();
     }
 
-    final Token token = accept();
-    final AdditiveBinaryExpression.Operator op;
+    // remember each operator and where it started, then apply them
+    // innermost first once the operand is parsed
 
-    switch (token.kind) {
-      case PLUS:
-        op = AdditiveBinaryExpression.Operator.ADD;
-        break;
-      case MINUS:
-        op = AdditiveBinaryExpression.Operator.SUBTRACT;
-        break;
-      default:
-        error("unrecognized additive operator");
-        return null;
+    final int base = operatorCount;
+
+    while (matchAny(TokenSet.SIGNS)) {
+      pushOperator(lookahead(0).kind);
+      accept();
     }
 
-    final Expression rhs = parseAdditiveExpression();
+    Expression expr = parsePrimaryExpression();
 
-    loc.end(range);
+    while (operatorCount > base) {
+      operatorCount--;
+      final UnaryExpression.Operator op =
+          operatorKinds[operatorCount] == TokenKind.PLUS
+              ? UnaryExpression.Operator.POSITIVE
+              : UnaryExpression.Operator.NEGATIVE;
+      expr = created(new UnaryExpression(
+          loc.range(operatorMarks[operatorCount]), op, expr));
+    }
 
-    return new AdditiveBinaryExpression(range, op, lhs, rhs);
+    return expr;
 
   }
 
-  public Expression parseShiftExpression() {
+  /**
+   * Pops the top operator and its two operands and pushes the node that
+   * combines them. The node starts where its left operand started.
+   */
+  private void reduce() {
 
-    final SourceRange range = loc.newRange();
-    final Expression lhs = parseAdditiveExpression();
+    final TokenKind kind = operatorKinds[--operatorCount];
+    final Expression rhs = operands[--operandCount];
+    final int i = operandCount - 1;
+    final Expression lhs = operands[i];
 
-    if (!matchAny(TokenKind.SHIFT_LEFT, TokenKind.SHIFT_RIGHT)) {
-      return lhs;
-    }
+    operands[operandCount] = null;
 
-    final Token token = accept();
-    final ShiftBinaryExpression.Operator op;
+    final SourceRange range = loc.range(operandMarks[i]);
 
-    switch (token.kind) {
+    switch (kind) {
+      case MULTIPLY:
+        operands[i] = created(new MultiplicativeBinaryExpression(
+            range, MultiplicativeBinaryExpression.Operator.MULTIPLY, lhs, rhs));
+        break;
+      case DIVIDE:
+        operands[i] = created(new MultiplicativeBinaryExpression(
+            range, MultiplicativeBinaryExpression.Operator.DIVIDE, lhs, rhs));
+        break;
+      case DIVIDE_INT:
+        operands[i] = created(new MultiplicativeBinaryExpression(
+            range, MultiplicativeBinaryExpression.Operator.DIVIDE_INT, lhs, rhs));
+        break;
+      case MODULUS:
+        operands[i] = created(new MultiplicativeBinaryExpression(
+            range, MultiplicativeBinaryExpression.Operator.MODULUS, lhs, rhs));
+        break;
+      case PLUS:
+        operands[i] = created(new AdditiveBinaryExpression(
+            range, AdditiveBinaryExpression.Operator.ADD, lhs, rhs));
+        break;
+      case MINUS:
+        operands[i] = created(new AdditiveBinaryExpression(
+            range, AdditiveBinaryExpression.Operator.SUBTRACT, lhs, rhs));
+        break;
       case SHIFT_LEFT:
-        op = ShiftBinaryExpression.Operator.SHL;
+        operands[i] = created(new ShiftBinaryExpression(
+            range, ShiftBinaryExpression.Operator.SHL, lhs, rhs));
         break;
       case SHIFT_RIGHT:
-        op = ShiftBinaryExpression.Operator.SHR;
+        operands[i] = created(new ShiftBinaryExpression(
+            range, ShiftBinaryExpression.Operator.SHR, lhs, rhs));
         break;
-      default:
-        error("unrecognized binary shift operator");
-        return null;
-    }
-
-    final Expression rhs = parseShiftExpression();
-
-    loc.end(range);
-
-    return new ShiftBinaryExpression(range, op, lhs, rhs);
-
-  }
-
-  public Expression parseRelationalExpression() {
-
-    final SourceRange range = loc.newRange();
-    final Expression lhs = parseShiftExpression();
-
-    if (!matchAny(
-        TokenKind.EQUALS, TokenKind.NOT_EQUALS,
-        TokenKind.GREATER_THAN, TokenKind.GREATER_THAN_OR_EQUAL_TO,
-        TokenKind.LESS_THAN, TokenKind.LESS_THAN_OR_EQUAL_TO)) {
-      return lhs;
-    }
-
-    final Token token = accept();
-    final RelationalBinaryExpression.Operator op;
-
-    switch (token.kind) {
       case EQUALS:
-        op = RelationalBinaryExpression.Operator.EQ;
+        operands[i] = created(new RelationalBinaryExpression(
+            range, RelationalBinaryExpression.Operator.EQ, lhs, rhs));
         break;
       case NOT_EQUALS:
-        op = RelationalBinaryExpression.Operator.NEQ;
+        operands[i] = created(new RelationalBinaryExpression(
+            range, RelationalBinaryExpression.Operator.NEQ, lhs, rhs));
         break;
       case GREATER_THAN:
-        op = RelationalBinaryExpression.Operator.GT;
+        operands[i] = created(new RelationalBinaryExpression(
+            range, RelationalBinaryExpression.Operator.GT, lhs, rhs));
         break;
       case GREATER_THAN_OR_EQUAL_TO:
-        op = RelationalBinaryExpression.Operator.GTE;
+        operands[i] = created(new RelationalBinaryExpression(
+            range, RelationalBinaryExpression.Operator.GTE, lhs, rhs));
         break;
       case LESS_THAN:
-        op = RelationalBinaryExpression.Operator.LT;
+        operands[i] = created(new RelationalBinaryExpression(
+            range, RelationalBinaryExpression.Operator.LT, lhs, rhs));
         break;
       case LESS_THAN_OR_EQUAL_TO:
-        op = RelationalBinaryExpression.Operator.LTE;
+        operands[i] = created(new RelationalBinaryExpression(
+            range, RelationalBinaryExpression.Operator.LTE, lhs, rhs));
         break;
-      default:
-        error("unrecognized relational operator");
-        return null;
-    }
-
-    final Expression rhs = parseRelationalExpression();
-
-    loc.end(range);
-
-    return new RelationalBinaryExpression(range, op, lhs, rhs);
-
-  }
-
-  public Expression parseLogicalExpression() {
-
-    final SourceRange range = loc.newRange();
-    final Expression lhs = parseRelationalExpression();
-
-    if (!matchAny(TokenKind.AND_LOGICAL, TokenKind.OR_LOGICAL)) {
-      return lhs;
-    }
-
-    final Token token = accept();
-    final LogicalBinaryExpression.Operator op;
-
-    switch (token.kind) {
       case AND_LOGICAL:
-        op = LogicalBinaryExpression.Operator.AND;
+        operands[i] = created(new LogicalBinaryExpression(
+            range, LogicalBinaryExpression.Operator.AND, lhs, rhs));
         break;
       case OR_LOGICAL:
-        op = LogicalBinaryExpression.Operator.OR;
+        operands[i] = created(new LogicalBinaryExpression(
+            range, LogicalBinaryExpression.Operator.OR, lhs, rhs));
         break;
-      default:
-        error("unrecognized logical operator");
-        return null;
-    }
-
-    final Expression rhs = parseLogicalExpression();
-
-    loc.end(range);
-
-    return new LogicalBinaryExpression(range, op, lhs, rhs);
-
-  }
-
-  public Expression parseAssignmentExpression() {
-
-    final SourceRange range = loc.newRange();
-    final Expression lhs = parseLogicalExpression();
-
-    if (!matchAny(
-        TokenKind.ASSIGN, TokenKind.ASSIGN_PLUS, TokenKind.ASSIGN_MINUS,
-        TokenKind.ASSIGN_MULTIPLY, TokenKind.ASSIGN_DIVIDE, TokenKind.ASSIGN_MODULUS,
-        TokenKind.ASSIGN_SHIFT_LEFT, TokenKind.ASSIGN_SHIFT_RIGHT,
-        TokenKind.ASSIGN_POW, TokenKind.ASSIGN_AND, TokenKind.ASSIGN_OR, TokenKind.ASSIGN_XOR)) {
-      return lhs;
-    }
-
-    final Token token = accept();
-    final AssignmentExpression.Operator op;
-
-    switch (token.kind) {
       case ASSIGN:
-        op = AssignmentExpression.Operator.ASSIGN;
+        operands[i] = created(new AssignmentExpression(
+            range, AssignmentExpression.Operator.ASSIGN, lhs, rhs));
         break;
       case ASSIGN_PLUS:
-        op = AssignmentExpression.Operator.ASSIGN_ADD;
+        operands[i] = created(new AssignmentExpression(
+            range, AssignmentExpression.Operator.ASSIGN_ADD, lhs, rhs));
         break;
       case ASSIGN_MINUS:
-        op = AssignmentExpression.Operator.ASSIGN_SUB;
+        operands[i] = created(new AssignmentExpression(
+            range, AssignmentExpression.Operator.ASSIGN_SUB, lhs, rhs));
         break;
       case ASSIGN_MULTIPLY:
-        op = AssignmentExpression.Operator.ASSIGN_MUL;
+        operands[i] = created(new AssignmentExpression(
+            range, AssignmentExpression.Operator.ASSIGN_MUL, lhs, rhs));
         break;
       case ASSIGN_DIVIDE:
-        op = AssignmentExpression.Operator.ASSIGN_DIV;
+        operands[i] = created(new AssignmentExpression(
+            range, AssignmentExpression.Operator.ASSIGN_DIV, lhs, rhs));
         break;
       case ASSIGN_MODULUS:
-        op = AssignmentExpression.Operator.ASSIGN_MOD;
+        operands[i] = created(new AssignmentExpression(
+            range, AssignmentExpression.Operator.ASSIGN_MOD, lhs, rhs));
         break;
       case ASSIGN_SHIFT_LEFT:
-        op = AssignmentExpression.Operator.ASSIGN_SHL;
+        operands[i] = created(new AssignmentExpression(
+            range, AssignmentExpression.Operator.ASSIGN_SHL, lhs, rhs));
         break;
       case ASSIGN_SHIFT_RIGHT:
-        op = AssignmentExpression.Operator.ASSIGN_SHR;
+        operands[i] = created(new AssignmentExpression(
+            range, AssignmentExpression.Operator.ASSIGN_SHR, lhs, rhs));
         break;
       case ASSIGN_AND:
-        op = AssignmentExpression.Operator.ASSIGN_AND;
+        operands[i] = created(new AssignmentExpression(
+            range, AssignmentExpression.Operator.ASSIGN_AND, lhs, rhs));
         break;
       case ASSIGN_OR:
-        op = AssignmentExpression.Operator.ASSIGN_OR;
+        operands[i] = created(new AssignmentExpression(
+            range, AssignmentExpression.Operator.ASSIGN_OR, lhs, rhs));
         break;
       case ASSIGN_XOR:
-        op = AssignmentExpression.Operator.ASSIGN_XOR;
+        operands[i] = created(new AssignmentExpression(
+            range, AssignmentExpression.Operator.ASSIGN_XOR, lhs, rhs));
         break;
       default:
-        error("unrecognized assignment operator");
-        return null;
+        throw new IllegalStateException(String.format(
+            "%s is not a binary operator", kind));
     }
 
-    final Expression rhs = parseAssignmentExpression();
-
-    loc.end(range);
+  }
 
-    return new AssignmentExpression(range, op, lhs, rhs);
+  /**
+   * Reserves an operand slot and records where the operand starts.
+   *
+   * @return index of the slot
+   */
+  private int pushOperand() {
+    if (operandCount == operands.length) {
+      final int capacity = operandCount << 1;
+      operands = Arrays.copyOf(operands, capacity);
+      operandMarks = Arrays.copyOf(operandMarks, capacity);
+    }
+    operandMarks[operandCount] = mark();
+    return operandCount++;
+  }
 
+  private void pushOperator(TokenKind kind) {
+    if (operatorCount == operatorKinds.length) {
+      final int capacity = operatorCount << 1;
+      operatorKinds = Arrays.copyOf(operatorKinds, capacity);
+      operatorMarks = Arrays.copyOf(operatorMarks, capacity);
+    }
+    operatorKinds[operatorCount] = kind;
+    operatorMarks[operatorCount] = mark();
+    operatorCount++;
   }
 
   public Expression parsePrimaryExpression() {
@@ -860,41 +989,37 @@ public class Parser {
       return expr;
     }
 
-    final SourceRange range = loc.newRange();
+    final int start = mark();
 
     if (match(TokenKind.KEYWORD, Keywords.TRUE)) {
       accept();
-      loc.end(range);
-      return new ConstantBooleanExpression(range, true);
+      return created(new ConstantBooleanExpression(loc.range(start), true));
     }
 
     if (match(TokenKind.KEYWORD, Keywords.FALSE)) {
       accept();
-      loc.end(range);
-      return new ConstantBooleanExpression(range, false);
+      return created(new ConstantBooleanExpression(loc.range(start), false));
     }
 
     if (match(TokenKind.STRING)) {
       final Token token = accept();
-      loc.end(range);
-      return new ConstantStringExpression(range, lexer.lexeme(token));
+      return created(new ConstantStringExpression(loc.range(start), lexer.lexeme(token, symbols)));
     }
 
     if (match(TokenKind.NUMBER)) {
       final Token token = accept();
-      loc.end(range);
-      return new ConstantNumberExpression(range, Double.parseDouble(lexer.lexeme(token)));
+      return created(new ConstantNumberExpression(loc.range(start), token.value));
     }
 
-    if (matchAll(TokenKind.IDENTIFIER, TokenKind.PAREN_LEFT)) {
-      return parseCallExpression();
-    } else if (matchAll(TokenKind.IDENTIFIER, TokenKind.BRACKET_LEFT)) {
-      return parseIndexExpression();
-    } else if (matchAll(TokenKind.IDENTIFIER, TokenKind.INCREMENT)) {
-      return parsePostfixExpression();
-    } else if (matchAll(TokenKind.IDENTIFIER, TokenKind.DECREMENT)) {
-      return parsePostfixExpression();
-    } else if (match(TokenKind.IDENTIFIER)) {
+    if (match(TokenKind.IDENTIFIER)) {
+      final TokenKind next = lookahead(1).kind;
+      if (next == TokenKind.PAREN_LEFT) {
+        return parseCallExpression();
+      } else if (next == TokenKind.BRACKET_LEFT) {
+        return parseIndexExpression();
+      } else if (TokenSet.contains(TokenSet.POSTFIX, next)) {
+        return parsePostfixExpression();
+      }
       return parseIdentifier();
     }
 
@@ -905,10 +1030,10 @@ public class Parser {
 
   private Expression parsePostfixExpression() {
 
-    final SourceRange range = loc.newRange();
+    final int start = mark();
     final Identifier lhs = parseIdentifier();
 
-    if (!matchAny(TokenKind.INCREMENT, TokenKind.DECREMENT)) {
+    if (!matchAny(TokenSet.POSTFIX)) {
       return lhs;
     }
 
@@ -927,22 +1052,20 @@ public class Parser {
         return null;
     }
 
-    loc.end(range);
-
-    return new PostfixExpression(range, op, lhs);
+    return created(new PostfixExpression(loc.range(start), op, lhs));
 
   }
 
   private CallExpression parseCallExpression() {
 
-    final SourceRange range = loc.newRange();
+    final int start = mark();
     final Identifier symbol = parseIdentifier();
 
     expect(TokenKind.PAREN_LEFT);
 
     List<Expression> arguments = new ArrayList<>();
 
-    while (!matchAny(TokenKind.PAREN_RIGHT, TokenKind.END)) {
+    while (!matchAny(TokenSet.LIST_END)) {
 
       final Expression arg = parseExpression();
       if (arg != null)
@@ -955,9 +1078,7 @@ public class Parser {
 
     expect(TokenKind.PAREN_RIGHT);
 
-    loc.end(range);
-
-    final CallExpression node = new CallExpression(range, symbol, arguments);
+    final CallExpression node = created(new CallExpression(loc.range(start), symbol, arguments));
 
     return node;
 
@@ -965,26 +1086,30 @@ public class Parser {
 
   private IndexExpression parseIndexExpression() {
 
-    final SourceRange range = loc.newRange();
+    final int start = mark();
     final Identifier symbol = parseIdentifier();
-    final IndexExpression node = new IndexExpression(range, symbol);
+
+    Expression index = null;
 
     expect(TokenKind.BRACKET_LEFT);
 
     if (!match(TokenKind.BRACKET_RIGHT)) {
-      final Expression index = parsePrimaryExpression();
-      node.setIndexExpression(index);
+      index = parsePrimaryExpression();
     }
 
     expect(TokenKind.BRACKET_RIGHT);
 
     // skip type hint
 
-    if (matchAny(TokenKind.DOLLAR, TokenKind.NOT)) {
+    if (matchAny(TokenSet.TYPE_SUFFIXES)) {
       accept();
     }
 
-    loc.end(range);
+    final IndexExpression node = created(new IndexExpression(loc.range(start), symbol));
+
+    if (index != null) {
+      node.setIndexExpression(index);
+    }
 
     return node;
 
@@ -992,38 +1117,67 @@ public class Parser {
 
   private Parameter parseParameter() {
 
-    final SourceRange range = loc.newRange();
+    final int start = mark();
     final Identifier name = parseIdentifier();
 
-    loc.end(range);
-
-    return new Parameter(range, name);
+    return created(new Parameter(loc.range(start), name));
 
   }
 
   private Identifier parseIdentifier() {
 
-    final SourceRange range = loc.newRange();
+    final int start = mark();
 
     if (match(TokenKind.HASH)) {
       accept();
     }
 
     final Token token = expect(TokenKind.IDENTIFIER);
-    final String lexeme = lexer.lexeme(token);
+    final String lexeme = lexer.lexeme(token, symbols);
 
-    if (matchAny(TokenKind.DOLLAR, TokenKind.NOT))
+    if (matchAny(TokenSet.TYPE_SUFFIXES))
       accept();
 
-    loc.end(range);
+    return created(new Identifier(loc.range(start), lexeme));
+
+  }
 
-    return new Identifier(range, lexeme);
+  /**
+   * Reports a newly created node to the metrics listener, if any.
+   *
+   * @param node created node
+   * @return the given node
+   */
+  private <T> T created(T node) {
+    if (metrics != null) {
+      metrics.created(node.getClass());
+    }
+    return node;
+  }
 
+  /**
+   * @return start of the next token, where a node parsed from it starts
+   */
+  private int mark() {
+    return lookahead(0).offset;
+  }
+
+  private SourceRange newRange() {
+    final SourceRange range = SourceRange.empty();
+    loc.start(range, mark());
+    return range;
   }
 
   private Token accept() {
 
-    return tokens.removeFirst();
+    final Token token = lookahead(0);
+
+    head = (head + 1) & LOOKAHEAD_MASK;
+    count--;
+
+    loc.accepted(token);
+
+    return token;
 
   }
 
@@ -1042,7 +1196,7 @@ public class Parser {
 
     // statements must end with line-break or semicolon
 
-    if (!matchAny(TokenKind.EOL, TokenKind.SEMICOLON)) {
+    if (!matchAny(TokenSet.TERMINATORS)) {
       error("expected end of statement");
     }
 
@@ -1061,29 +1215,19 @@ public class Parser {
     if (match(kind, tag)) {
       return accept();
     } else {
-      final Token current = tokens.getFirst();
+      final Token current = lookahead(0);
       error(String.format("expected %s, found %s", kind, current.kind));
       return current;
     }
 
   }
 
-  private boolean matchAll(TokenKind... kinds) {
-    final int len = kinds.length;
-    for (int i = 0; i < len; i++) {
-      if (lookahead(i).kind != kinds[i])
-        return false;
-    }
-    return true;
+  private boolean matchAll(TokenKind first, TokenKind second) {
+    return lookahead(0).kind == first && lookahead(1).kind == second;
   }
 
-  private boolean matchAny(TokenKind... kinds) {
-    for (TokenKind kind : kinds) {
-      if (match(kind)) {
-        return true;
-      }
-    }
-    return false;
+  private boolean matchAny(long set) {
+    return (set & (1L << lookahead(0).kind.ordinal())) != 0;
   }
 
   private boolean match(TokenKind kind) {
@@ -1099,24 +1243,33 @@ public class Parser {
   }
 
   private Token lookahead(int k) {
-    while (k >= tokens.size()) {
-      tokens.addLast(lexer.scan());
+    while (k >= count) {
+      lexer.scan(tokens[(head + count) & LOOKAHEAD_MASK]);
+      count++;
+      if (metrics != null) {
+        metrics.buffered(count);
+      }
     }
-    return tokens.get(k);
+    return tokens[(head + k) & LOOKAHEAD_MASK];
   }
 
   private void skip() {
-    while (matchAny(TokenKind.EOL, TokenKind.SEMICOLON, TokenKind.COMMENT))
+    while (matchAny(TokenSet.TRIVIA))
       accept();
   }
 
   private void error(String message) {
-    final Token token = tokens.get(0);
-    final int line = token.line;
-    final int column = token.column;
+    final Token token = lookahead(0);
+    final LineMap lines = lexer.getLineMap();
+    final int line = lines.line(token.offset);
+    final int column = lines.column(token.offset);
     final String msg = String.format("(%4d, %4d) %s", line, column, message);
+    final ParseError error = new ParseError(line, column, msg);
     for (final ParserListener listener : listeners) {
-      listener.error(new ParseError(line, column, msg));
+      listener.error(error);
+    }
+    if (metrics != null) {
+      metrics.error(error);
     }
     accept();
   }
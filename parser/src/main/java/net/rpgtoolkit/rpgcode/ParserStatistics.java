@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A {@link MetricsListener} that aggregates instrumentation events into
+ * counters.
+ *
+ * The counters are published by {@link #snapshot()} as a flat map of
+ * dotted names to values, which a metrics registry can consume as gauges
+ * without depending on this class:
+ *
+ * <ul>
+ *   <li>{@code tokens}, {@code tokens.<kind>}: tokens scanned</li>
+ *   <li>{@code nodes}, {@code nodes.<type>}: tree nodes created</li>
+ *   <li>{@code declarations}, {@code declarations.nanos},
+ *   {@code declarations.nanos.max}, {@code declarations.line.max}:
+ *   top-level classes, functions and statements parsed, the time spent
+ *   parsing them and the line of the slowest</li>
+ *   <li>{@code depth.max}: deepest nesting of blocks and expressions</li>
+ *   <li>{@code lookahead.max}: lookahead buffer high-water mark</li>
+ *   <li>{@code errors}: errors reported</li>
+ * </ul>
+ *
+ * Not thread-safe; use one instance per parser, or {@link #merge} the
+ * statistics of several parsers.
+ */
+public class ParserStatistics implements MetricsListener {
+
+  private static final TokenKind[] KINDS = TokenKind.values();
+
+  private final long[] tokens;
+  private final Map<Class<?>, long[]> nodes;
+  private long declarations;
+  private long declarationNanos;
+  private long slowestNanos;
+  private int slowestLine;
+  private int depth;
+  private int lookahead;
+  private long errors;
+
+  public ParserStatistics() {
+    this.tokens = new long[KINDS.length];
+    this.nodes = new HashMap<>();
+  }
+
+  @Override
+  public void scanned(Token token) {
+    this.tokens[token.kind.ordinal()]++;
+  }
+
+  @Override
+  public void created(Class<?> type) {
+    final long[] count = this.nodes.get(type);
+    if (count != null) {
+      count[0]++;
+    } else {
+      this.nodes.put(type, new long[] { 1 });
+    }
+  }
+
+  @Override
+  public void declared(int line, long nanos) {
+    this.declarations++;
+    this.declarationNanos += nanos;
+    if (nanos > this.slowestNanos) {
+      this.slowestNanos = nanos;
+      this.slowestLine = line;
+    }
+  }
+
+  @Override
+  public void descended(int depth) {
+    this.depth = Math.max(this.depth, depth);
+  }
+
+  @Override
+  public void buffered(int count) {
+    this.lookahead = Math.max(this.lookahead, count);
+  }
+
+  @Override
+  public void error(ParseError error) {
+    this.errors++;
+  }
+
+  public long getTokens() {
+    long total = 0;
+    for (final long count : this.tokens) {
+      total += count;
+    }
+    return total;
+  }
+
+  public long getTokens(TokenKind kind) {
+    return this.tokens[kind.ordinal()];
+  }
+
+  public long getNodes() {
+    long total = 0;
+    for (final long[] count : this.nodes.values()) {
+      total += count[0];
+    }
+    return total;
+  }
+
+  public long getNodes(Class<?> type) {
+    final long[] count = this.nodes.get(type);
+    return count != null ? count[0] : 0;
+  }
+
+  public long getDeclarations() {
+    return this.declarations;
+  }
+
+  /**
+   * @return total time spent parsing top-level elements, in nanoseconds
+   */
+  public long getDeclarationNanos() {
+    return this.declarationNanos;
+  }
+
+  public int getMaxDepth() {
+    return this.depth;
+  }
+
+  public int getMaxLookahead() {
+    return this.lookahead;
+  }
+
+  public long getErrors() {
+    return this.errors;
+  }
+
+  /**
+   * Adds the counters of another instance to this one.
+   *
+   * @param other statistics to add
+   */
+  public void merge(ParserStatistics other) {
+    for (int i = 0; i < this.tokens.length; i++) {
+      this.tokens[i] += other.tokens[i];
+    }
+    for (final Map.Entry<Class<?>, long[]> e : other.nodes.entrySet()) {
+      final long[] count = this.nodes.get(e.getKey());
+      if (count != null) {
+        count[0] += e.getValue()[0];
+      } else {
+        this.nodes.put(e.getKey(), new long[] { e.getValue()[0] });
+      }
+    }
+    this.declarations += other.declarations;
+    this.declarationNanos += other.declarationNanos;
+    if (other.slowestNanos > this.slowestNanos) {
+      this.slowestNanos = other.slowestNanos;
+      this.slowestLine = other.slowestLine;
+    }
+    this.depth = Math.max(this.depth, other.depth);
+    this.lookahead = Math.max(this.lookahead, other.lookahead);
+    this.errors += other.errors;
+  }
+
+  /**
+   * @return every counter by name, sorted by name
+   */
+  public Map<String, Number> snapshot() {
+
+    final Map<String, Number> result = new TreeMap<>();
+
+    result.put("tokens", getTokens());
+    for (final TokenKind kind : KINDS) {
+      if (this.tokens[kind.ordinal()] > 0) {
+        result.put("tokens." + kind.name(), this.tokens[kind.ordinal()]);
+      }
+    }
+
+    result.put("nodes", getNodes());
+    for (final Map.Entry<Class<?>, long[]> e : this.nodes.entrySet()) {
+      result.put("nodes." + e.getKey().getSimpleName(), e.getValue()[0]);
+    }
+
+    result.put("declarations", this.declarations);
+    result.put("declarations.nanos", this.declarationNanos);
+    result.put("declarations.nanos.max", this.slowestNanos);
+    result.put("declarations.line.max", this.slowestLine);
+    result.put("depth.max", this.depth);
+    result.put("lookahead.max", this.lookahead);
+    result.put("errors", this.errors);
+
+    return result;
+
+  }
+
+}
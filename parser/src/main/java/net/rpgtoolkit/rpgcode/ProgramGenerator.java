@@ -0,0 +1,557 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates synthetic RPGCode programs for load testing the lexer, the
+ * parser and anything built on them.
+ *
+ * Every program is accepted by the {@link Parser} without errors, and uses
+ * every construct it accepts: classes with visibility labels, fields and
+ * abstract, inline and ordinary methods; functions; conditionals with
+ * elseif and else branches; for, while, until and do loops with break and
+ * continue; labels; on error resume next; comments; and expressions over
+ * every operator, with calls, indexed and typed identifiers, postfix and
+ * unary operators.
+ *
+ * Output depends only on the seed, shape and size. Programs are produced
+ * one top-level element at a time, so arbitrarily large programs can be
+ * streamed to a writer without being held in memory.
+ *
+ * Not thread-safe.
+ */
+public class ProgramGenerator {
+
+  /**
+   * Seed used when none is given, so that separate runs generate the same
+   * programs.
+   */
+  public static final long DEFAULT_SEED = 0x5250474bL;
+
+  /**
+   * The construct that dominates a generated program.
+   */
+  public enum Shape {
+
+    /**
+     * A blend of classes, functions, statements and comments.
+     */
+    MIXED,
+
+    /**
+     * Assignments with deeply nested expressions.
+     */
+    EXPRESSIONS,
+
+    /**
+     * Few functions with long bodies.
+     */
+    FUNCTIONS,
+
+    /**
+     * Many small classes with fields and methods.
+     */
+    CLASSES,
+
+    /**
+     * Mostly comment lines, with a little code between them.
+     */
+    COMMENTS
+
+  }
+
+  private static final String[] NAMES = {
+    "x", "y", "count", "index", "player", "health", "item", "target",
+    "speed", "name", "score", "enemy", "gold", "level", "map", "dx"
+  };
+
+  private static final String[] WORDS = {
+    "the", "player", "walks", "into", "a", "dark", "room", "and", "finds",
+    "gold", "sword", "shield", "potion", "door", "key", "chest"
+  };
+
+  private static final String[] BINARY = {
+    "+", "-", "*", "/", "\\", "%", "<<", ">>",
+    "==", "!=", "<>", "<", "<=", ">", ">=", "&&", "||", "and", "or"
+  };
+
+  private static final String[] ASSIGN = {
+    "=", "=", "=", "=", "+=", "-=", "*=", "/=", "%=", "<<=", ">>=", "&=", "|=", "`="
+  };
+
+  private static final String[] VISIBILITY = {
+    "public:", "private:", "protected:"
+  };
+
+  // statement nesting depth of blocks in generated functions
+
+  private static final int DEPTH = 3;
+
+  private final Random random;
+  private final Shape shape;
+  private final StringBuilder buffer;
+  private int indent;
+  private int loops;
+  private int serial;
+
+  public ProgramGenerator() {
+    this(DEFAULT_SEED, Shape.MIXED);
+  }
+
+  public ProgramGenerator(long seed, Shape shape) {
+    if (shape == null) {
+      throw new NullPointerException();
+    }
+    this.random = new Random(seed);
+    this.shape = shape;
+    this.buffer = new StringBuilder();
+  }
+
+  /**
+   * Generates a program of at least the given size. Generation stops after
+   * the first top-level element that reaches the size, so a program is
+   * never cut off in the middle of a construct.
+   *
+   * @param size minimum size in characters
+   * @return program text
+   */
+  public String generate(int size) {
+    while (this.buffer.length() < size) {
+      element();
+    }
+    final String result = this.buffer.toString();
+    this.buffer.setLength(0);
+    return result;
+  }
+
+  /**
+   * Streams a program of at least the given size to a writer, one
+   * top-level element at a time.
+   *
+   * @param out destination
+   * @param size minimum size in characters
+   * @return number of characters written
+   * @throws IOException if the destination cannot be written
+   */
+  public long generate(Appendable out, long size) throws IOException {
+    if (out == null) {
+      throw new NullPointerException();
+    }
+    long written = 0;
+    while (written < size) {
+      element();
+      out.append(this.buffer);
+      written += this.buffer.length();
+      this.buffer.setLength(0);
+    }
+    return written;
+  }
+
+  /**
+   * Generates a program of exactly the given number of lines, each a
+   * simple assignment.
+   *
+   * @param count number of lines
+   * @return program text
+   */
+  public String lines(int count) {
+    for (int i = 0; i < count; i++) {
+      line(pick() + " = " + expression(1));
+    }
+    final String result = this.buffer.toString();
+    this.buffer.setLength(0);
+    return result;
+  }
+
+  private void element() {
+    switch (this.shape) {
+      case EXPRESSIONS:
+        line(pick() + " = " + expression(8 + this.random.nextInt(8)));
+        break;
+      case FUNCTIONS:
+        function(200 + this.random.nextInt(200));
+        break;
+      case CLASSES:
+        declareClass();
+        break;
+      case COMMENTS:
+        for (int i = this.random.nextInt(8); i >= 0; i--) {
+          comment();
+        }
+        statement(1);
+        break;
+      default:
+        switch (this.random.nextInt(8)) {
+          case 0:
+          case 1:
+            function(4 + this.random.nextInt(16));
+            break;
+          case 2:
+            declareClass();
+            break;
+          case 3:
+            comment();
+            break;
+          case 4:
+            line("on error resume next");
+            break;
+          default:
+            statement(DEPTH);
+            break;
+        }
+        break;
+    }
+  }
+
+  private void declareClass() {
+
+    line("class " + name("Class") + " {");
+    this.indent++;
+
+    for (int i = this.random.nextInt(4); i >= 0; i--) {
+
+      this.indent--;
+      line(VISIBILITY[this.random.nextInt(VISIBILITY.length)]);
+      this.indent++;
+
+      if (this.random.nextInt(4) == 0) {
+        comment();
+      }
+
+      line((this.random.nextBoolean() ? "var " : "") + typed());
+
+      switch (this.random.nextInt(4)) {
+        case 0:
+          line("function " + name("abstract") + "(" + parameters() + ") == 0");
+          break;
+        case 1:
+          function(2 + this.random.nextInt(6));
+          break;
+        default:
+          break;
+      }
+
+    }
+
+    // the parser rejects a class body that ends with a method
+
+    line("var " + pick());
+
+    this.indent--;
+    line("}");
+
+  }
+
+  private void function(int statements) {
+
+    final String inline = this.random.nextInt(8) == 0 ? "inline " : "";
+
+    line(inline + "function " + name("fn") + "(" + parameters() + ") {");
+    this.indent++;
+
+    for (int i = 0; i < statements; i++) {
+      statement(DEPTH);
+    }
+
+    if (this.random.nextBoolean()) {
+      line("return " + expression(2));
+    } else {
+      line("return");
+    }
+
+    this.indent--;
+    line("}");
+
+  }
+
+  private String parameters() {
+    final StringBuilder result = new StringBuilder();
+    for (int i = this.random.nextInt(4); i > 0; i--) {
+      if (result.length() > 0) {
+        result.append(", ");
+      }
+      result.append(pick());
+    }
+    return result.toString();
+  }
+
+  private void statement(int depth) {
+
+    final int choice = this.random.nextInt(depth > 0 ? 20 : 12);
+
+    switch (choice) {
+      case 0:
+        line(pick() + "(" + arguments() + ")");
+        break;
+      case 1:
+        line(pick() + (this.random.nextBoolean() ? "++" : "--"));
+        break;
+      case 2:
+        line(target() + " " + ASSIGN[this.random.nextInt(ASSIGN.length)]
+            + " " + expression(2) + " // " + words(3));
+        break;
+      case 3:
+        line(pick() + " = " + expression(1) + "; " + pick() + " = " + expression(1));
+        break;
+      case 4:
+        comment();
+        break;
+      case 5:
+        this.indent--;
+        line(name("label") + ":");
+        this.indent++;
+        break;
+      case 6:
+        if (this.loops > 0) {
+          line(this.random.nextBoolean() ? "break" : "continue");
+        } else {
+          line("on error resume next");
+        }
+        break;
+      case 12:
+      case 13:
+        conditional(depth);
+        break;
+      case 14:
+        loop("while (" + expression(1) + ")", depth);
+        break;
+      case 15:
+        loop("until (" + expression(1) + ")", depth);
+        break;
+      case 16:
+        loop("for (i = 0; i < " + this.random.nextInt(100) + "; i++)", depth);
+        break;
+      case 17:
+        if (this.random.nextInt(4) == 0) {
+          loop("for (;;)", depth);
+        } else {
+          loop("for (" + pick() + " = 10; " + pick() + " >= 0; " + pick() + "--)", depth);
+        }
+        break;
+      case 18:
+        line("do {");
+        this.loops++;
+        body(depth);
+        this.loops--;
+        line("} while (" + expression(1) + ")");
+        break;
+      default:
+        line(target() + " = " + expression(2));
+        break;
+    }
+
+  }
+
+  private void conditional(int depth) {
+    line("if (" + expression(1) + ") {");
+    body(depth);
+    for (int i = this.random.nextInt(3); i > 0; i--) {
+      line("} elseif (" + expression(1) + ") {");
+      body(depth);
+    }
+    if (this.random.nextBoolean()) {
+      line("} else {");
+      body(depth);
+    }
+    line("}");
+  }
+
+  private void loop(String header, int depth) {
+    line(header + " {");
+    this.loops++;
+    body(depth);
+    this.loops--;
+    line("}");
+  }
+
+  private void body(int depth) {
+    this.indent++;
+    for (int i = this.random.nextInt(4); i >= 0; i--) {
+      statement(depth - 1);
+    }
+    this.indent--;
+  }
+
+  private void comment() {
+    line("// " + words(2 + this.random.nextInt(8)));
+  }
+
+  private String expression(int depth) {
+
+    if (depth <= 0) {
+      return operand();
+    }
+
+    final String lhs = expression(depth - 1);
+    final String rhs = expression(this.random.nextInt(depth));
+    final String op = BINARY[this.random.nextInt(BINARY.length)];
+
+    switch (this.random.nextInt(8)) {
+      case 0:
+        return "(" + lhs + ") " + op + " " + rhs;
+      case 1:
+        return lhs + " " + op + " (" + rhs + ")";
+      case 2:
+        return "-" + "(" + lhs + " " + op + " " + rhs + ")";
+      case 3:
+        return "+" + operand() + " " + op + " " + rhs;
+      default:
+        return lhs + " " + op + " " + rhs;
+    }
+
+  }
+
+  private String operand() {
+    switch (this.random.nextInt(12)) {
+      case 0:
+        return Integer.toString(this.random.nextInt(1000));
+      case 1:
+        return this.random.nextInt(100) + "." + this.random.nextInt(100);
+      case 2:
+        return "\"" + words(1 + this.random.nextInt(3)) + "\"";
+      case 3:
+        return this.random.nextBoolean() ? "true" : "false";
+      case 4:
+        return pick() + "(" + arguments() + ")";
+      case 5:
+        return pick() + (this.random.nextBoolean() ? "++" : "--");
+      case 6:
+      case 7:
+        return target();
+      default:
+        return pick();
+    }
+  }
+
+  private String arguments() {
+    final StringBuilder result = new StringBuilder();
+    for (int i = this.random.nextInt(4); i > 0; i--) {
+      if (result.length() > 0) {
+        result.append(", ");
+      }
+      result.append(expression(1));
+    }
+    return result.toString();
+  }
+
+  /**
+   * @return an identifier that may be indexed or carry a type suffix
+   */
+  private String target() {
+    switch (this.random.nextInt(4)) {
+      case 0:
+        return typed();
+      case 1:
+        final String index;
+        switch (this.random.nextInt(3)) {
+          case 0:
+            index = Integer.toString(this.random.nextInt(10));
+            break;
+          case 1:
+            index = "\"" + WORDS[this.random.nextInt(WORDS.length)] + "\"";
+            break;
+          default:
+            index = pick();
+            break;
+        }
+        return pick() + "[" + index + "]" + suffix();
+      default:
+        return pick();
+    }
+  }
+
+  private String typed() {
+    return pick() + suffix();
+  }
+
+  private String suffix() {
+    switch (this.random.nextInt(3)) {
+      case 0:
+        return "$";
+      case 1:
+        return "!";
+      default:
+        return "";
+    }
+  }
+
+  private String words(int count) {
+    final StringBuilder result = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        result.append(' ');
+      }
+      result.append(WORDS[this.random.nextInt(WORDS.length)]);
+    }
+    return result.toString();
+  }
+
+  private String pick() {
+    return NAMES[this.random.nextInt(NAMES.length)];
+  }
+
+  private String name(String prefix) {
+    return prefix + (this.serial++);
+  }
+
+  private void line(String text) {
+    for (int i = 0; i < this.indent; i++) {
+      this.buffer.append("  ");
+    }
+    this.buffer.append(text).append('\n');
+  }
+
+  /**
+   * Writes a generated program to a file.
+   *
+   * Usage: {@code ProgramGenerator <file> <size>[k|m|g] [shape] [seed]}
+   */
+  public static void main(String[] args) throws IOException {
+
+    if (args.length < 2) {
+      System.err.println("usage: ProgramGenerator <file> <size>[k|m|g] [shape] [seed]");
+      return;
+    }
+
+    final String size = args[1].toLowerCase();
+    final char unit = size.charAt(size.length() - 1);
+    long scale = 1;
+
+    switch (unit) {
+      case 'k':
+        scale = 1L << 10;
+        break;
+      case 'm':
+        scale = 1L << 20;
+        break;
+      case 'g':
+        scale = 1L << 30;
+        break;
+      default:
+        break;
+    }
+
+    final long target = Long.parseLong(scale > 1
+        ? size.substring(0, size.length() - 1) : size) * scale;
+    final Shape shape = args.length > 2
+        ? Shape.valueOf(args[2].toUpperCase()) : Shape.MIXED;
+    final long seed = args.length > 3
+        ? Long.parseLong(args[3]) : DEFAULT_SEED;
+
+    try (final Writer out = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(args[0]), StandardCharsets.UTF_8), 1 << 16)) {
+      new ProgramGenerator(seed, shape).generate(out, target);
+    }
+
+  }
+
+}
@@ -3,18 +3,23 @@ package net.rpgtoolkit.rpgcode;
 import net.rpgtoolkit.blade.ir.SourceLocation;
 import net.rpgtoolkit.blade.ir.SourceRange;
 
+import java.util.List;
+
 public class SourceLocationBuilder {
 
   private final Lexer lexer;
   private final LexerContext ctx;
   private SourceLocation start;
   private SourceLocation end;
+  private List<SourceLocation> recorder;
+  private int last;
 
   public SourceLocationBuilder(Lexer lexer) {
     if (lexer == null)
       throw new IllegalArgumentException();
     this.lexer = lexer;
     this.ctx = lexer.getContext();
+    this.last = ctx.offset;
   }
 
   public SourceRange newRange() {
@@ -23,18 +28,82 @@ public class SourceLocationBuilder {
     return range;
   }
 
+  /**
+   * Captures the current position of the lexer without allocating. A
+   * mark is the offset of the position; its line and column are looked
+   * up in the line map of the input once a location is built from it.
+   *
+   * @return position mark
+   */
+  public int mark() {
+    return ctx.offset;
+  }
+
+  /**
+   * Notes a token the parser has accepted. Ranges end where the last
+   * accepted token other than a comment or a line break ends, so they do
+   * not depend on how far the lexer has scanned ahead, nor on whether it
+   * keeps comments and blank lines out of the lookahead.
+   *
+   * @param token accepted token
+   */
+  void accepted(Token token) {
+    if (token.kind != TokenKind.EOL && token.kind != TokenKind.COMMENT)
+      last = token.offset + token.length;
+  }
+
+  /**
+   * Creates a range from a position captured earlier through
+   * {@link #mark()} to the end of the last accepted token.
+   *
+   * @param mark start position
+   * @return source range
+   */
+  public SourceRange range(int mark) {
+    final SourceRange range = SourceRange.empty();
+    set(range.getStartLocation(), mark);
+    end(range);
+    return range;
+  }
+
+  /**
+   * Sets the start of a range to a position captured earlier through
+   * {@link #mark()}.
+   */
+  public void start(SourceRange range, int mark) {
+    set(range.getStartLocation(), mark);
+  }
+
   public void start(SourceRange range) {
     set(range.getStartLocation());
   }
 
   public void end(SourceRange range) {
-    set(range.getEndLocation());
+    set(range.getEndLocation(), last);
+  }
+
+  /**
+   * Collects every location set by this builder into a list, or stops
+   * collecting if the list is null. Used to find the locations that belong
+   * to a region of the tree without walking it.
+   *
+   * @param recorder list receiving locations
+   */
+  public void record(List<SourceLocation> recorder) {
+    this.recorder = recorder;
   }
 
   public void set(SourceLocation location) {
-    location.setOffset(ctx.offset);
-    location.setLine(ctx.line);
-    location.setColumn(ctx.column);
+    set(location, ctx.offset);
+  }
+
+  private void set(SourceLocation location, int offset) {
+    final LineMap lines = lexer.getLineMap();
+    location.setOffset(offset);
+    location.setLine(lines.line(offset));
+    location.setColumn(lines.column(offset));
+    if (recorder != null)
+      recorder.add(location);
   }
 
 }
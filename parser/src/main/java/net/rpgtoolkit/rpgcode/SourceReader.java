@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads UTF-8 encoded RPGCode source files into character buffers that
+ * a {@link Lexer} in this package can adopt and scan without copying.
+ *
+ * Large files are memory-mapped and decoded straight from the mapping,
+ * so the only full copy of the file held on the heap is the decoded
+ * buffer itself. RPGCode tokens are ASCII, so bytes are widened directly
+ * until the first non-ASCII byte, which is usually inside a string
+ * literal or comment, and only the remainder goes through the decoder.
+ * Malformed input is replaced rather than rejected.
+ */
+public final class SourceReader {
+
+  // files smaller than this are read into the heap, where a single read
+  // is cheaper than setting up a mapping
+
+  private static final int MAP_THRESHOLD = 64 * 1024;
+
+  private SourceReader() {
+  }
+
+  /**
+   * Reads and decodes a source file.
+   *
+   * @param file file to read
+   * @return buffer holding the decoded source between position zero and
+   * its limit, backed by an array with room for the lexer sentinel
+   * @throws IOException if the file cannot be read
+   */
+  public static CharBuffer read(File file) throws IOException {
+
+    if (file == null) {
+      throw new NullPointerException();
+    }
+
+    try (final FileChannel channel = FileChannel.open(
+        file.toPath(), StandardOpenOption.READ)) {
+
+      final long size = channel.size();
+
+      if (size >= Integer.MAX_VALUE) {
+        throw new IOException(String.format(
+            "file too large: %s (%d bytes)", file, size));
+      }
+
+      final ByteBuffer bytes;
+
+      if (size < MAP_THRESHOLD) {
+        bytes = ByteBuffer.allocate((int) size);
+        while (bytes.hasRemaining()) {
+          if (channel.read(bytes) < 0) {
+            break;
+          }
+        }
+        bytes.flip();
+      } else {
+        bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+
+      return decode(bytes);
+
+    }
+
+  }
+
+  /**
+   * Decodes UTF-8 bytes into a buffer with room for the lexer sentinel.
+   * A UTF-8 sequence never decodes to more UTF-16 units than it has
+   * bytes, so the buffer is sized from the input up front.
+   *
+   * @param bytes UTF-8 encoded source
+   * @return decoded source, flipped for reading
+   */
+  public static CharBuffer decode(ByteBuffer bytes) {
+
+    final int length = bytes.remaining();
+    final int start = bytes.position();
+    final char[] chars = new char[length + 1];
+
+    // widen the leading ASCII run without the decoder
+
+    int ascii = 0;
+    while (ascii < length) {
+      final byte b = bytes.get(start + ascii);
+      if (b < 0) {
+        break;
+      }
+      chars[ascii++] = (char) b;
+    }
+
+    final CharBuffer output = CharBuffer.wrap(chars, 0, length);
+    output.position(ascii);
+
+    if (ascii < length) {
+
+      final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+      bytes.position(start + ascii);
+
+      final CoderResult result = decoder.decode(bytes, output, true);
+      if (result.isOverflow()) {
+        throw new IllegalStateException("decoded source exceeds buffer");
+      }
+      decoder.flush(output);
+
+    }
+
+    output.flip();
+
+    return output;
+
+  }
+
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+/**
+ * Interns the names and string literals of a program, so that every
+ * occurrence of a symbol shares one canonical string and symbols can be
+ * compared by identity.
+ *
+ * A region of source text is looked up straight from the characters of the
+ * input, without creating a temporary string; a string is only created the
+ * first time a symbol is seen. The table uses open addressing with linear
+ * probing and is kept at most half full.
+ *
+ * A table may be shared by the parsers of a whole project, as long as they
+ * do not run concurrently.
+ *
+ * Not thread-safe.
+ */
+public class SymbolTable {
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  private String[] symbols;
+  private int[] hashes;
+  private int size;
+
+  public SymbolTable() {
+    this.symbols = new String[INITIAL_CAPACITY];
+    this.hashes = new int[INITIAL_CAPACITY];
+    this.size = 0;
+  }
+
+  /**
+   * @return number of distinct symbols in the table
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Returns the canonical string for a region of characters, adding it to
+   * the table if it is not there yet.
+   *
+   * @param input source characters
+   * @param offset start of the region
+   * @param length length of the region
+   * @return canonical string holding the region
+   */
+  public String intern(char[] input, int offset, int length) {
+
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + input[offset + i];
+    }
+
+    final int mask = this.symbols.length - 1;
+    int slot = hash & mask;
+
+    while (true) {
+      final String symbol = this.symbols[slot];
+      if (symbol == null) {
+        break;
+      }
+      if (this.hashes[slot] == hash && matches(symbol, input, offset, length)) {
+        return symbol;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    final String symbol = new String(input, offset, length);
+
+    this.symbols[slot] = symbol;
+    this.hashes[slot] = hash;
+
+    if (++this.size << 1 > this.symbols.length) {
+      grow();
+    }
+
+    return symbol;
+
+  }
+
+  /**
+   * @param symbol string to intern
+   * @return canonical string equal to the given one
+   */
+  public String intern(String symbol) {
+    return intern(symbol.toCharArray(), 0, symbol.length());
+  }
+
+  private static boolean matches(String symbol, char[] input, int offset, int length) {
+    if (symbol.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (symbol.charAt(i) != input[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void grow() {
+
+    final String[] symbols = this.symbols;
+    final int[] hashes = this.hashes;
+    final int capacity = symbols.length << 1;
+    final int mask = capacity - 1;
+
+    this.symbols = new String[capacity];
+    this.hashes = new int[capacity];
+
+    for (int i = 0; i < symbols.length; i++) {
+      if (symbols[i] != null) {
+        int slot = hashes[i] & mask;
+        while (this.symbols[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        this.symbols[slot] = symbols[i];
+        this.hashes[slot] = hashes[i];
+      }
+    }
+
+  }
+
+}
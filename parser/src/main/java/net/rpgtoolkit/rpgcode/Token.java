@@ -18,8 +18,11 @@ public class Token {
   public int tag;
   public int offset;
   public int length;
-  public int line;
-  public int column;
+
+  /**
+   * Decoded value of a {@link TokenKind#NUMBER} token.
+   */
+  public double value;
 
   public Token() {
     this.reset();
@@ -30,14 +33,13 @@ public class Token {
     this.tag = 0;
     this.offset = 0;
     this.length = 0;
-    this.line = 0;
-    this.column = 0;
+    this.value = 0;
   }
 
   @Override
   public String toString() {
-    return String.format("(%04d, %04d) %s",
-      this.line, this.column, this.kind);
+    return String.format("(%06d, %04d) %s",
+      this.offset, this.length, this.kind);
   }
 
 }
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+/**
+ * Classes of token kinds, each encoded as a bitmask over the ordinals of
+ * {@link TokenKind}, so that testing a token for membership in a class is
+ * a single bit test instead of a loop over an array of kinds.
+ */
+public final class TokenSet {
+
+  static {
+    if (TokenKind.values().length > Long.SIZE) {
+      throw new AssertionError("token kinds do not fit in a token set");
+    }
+  }
+
+  /**
+   * Separators that end a statement.
+   */
+  public static final long TERMINATORS = of(TokenKind.EOL, TokenKind.SEMICOLON);
+
+  /**
+   * Tokens skipped between statements and declarations.
+   */
+  public static final long TRIVIA = of(TokenKind.EOL, TokenKind.SEMICOLON, TokenKind.COMMENT);
+
+  /**
+   * Tokens that end a block or class body.
+   */
+  public static final long BLOCK_END = of(TokenKind.BRACE_RIGHT, TokenKind.END);
+
+  /**
+   * Tokens that end a parameter or argument list.
+   */
+  public static final long LIST_END = of(TokenKind.PAREN_RIGHT, TokenKind.END);
+
+  /**
+   * Tokens that end a line.
+   */
+  public static final long LINE_END = of(TokenKind.EOL, TokenKind.END);
+
+  /**
+   * Prefix sign operators.
+   */
+  public static final long SIGNS = of(TokenKind.PLUS, TokenKind.MINUS);
+
+  /**
+   * Postfix increment and decrement operators.
+   */
+  public static final long POSTFIX = of(TokenKind.INCREMENT, TokenKind.DECREMENT);
+
+  /**
+   * Type hints that may follow an identifier.
+   */
+  public static final long TYPE_SUFFIXES = of(TokenKind.DOLLAR, TokenKind.NOT);
+
+  public static final long ASSIGNMENT = of(
+      TokenKind.ASSIGN, TokenKind.ASSIGN_PLUS, TokenKind.ASSIGN_MINUS,
+      TokenKind.ASSIGN_MULTIPLY, TokenKind.ASSIGN_DIVIDE, TokenKind.ASSIGN_MODULUS,
+      TokenKind.ASSIGN_SHIFT_LEFT, TokenKind.ASSIGN_SHIFT_RIGHT,
+      TokenKind.ASSIGN_POW, TokenKind.ASSIGN_AND, TokenKind.ASSIGN_OR, TokenKind.ASSIGN_XOR);
+
+  public static final long LOGICAL = of(TokenKind.AND_LOGICAL, TokenKind.OR_LOGICAL);
+
+  public static final long RELATIONAL = of(
+      TokenKind.EQUALS, TokenKind.NOT_EQUALS,
+      TokenKind.GREATER_THAN, TokenKind.GREATER_THAN_OR_EQUAL_TO,
+      TokenKind.LESS_THAN, TokenKind.LESS_THAN_OR_EQUAL_TO);
+
+  public static final long SHIFT = of(TokenKind.SHIFT_LEFT, TokenKind.SHIFT_RIGHT);
+
+  public static final long ADDITIVE = of(TokenKind.PLUS, TokenKind.MINUS);
+
+  public static final long MULTIPLICATIVE = of(
+      TokenKind.MULTIPLY, TokenKind.DIVIDE, TokenKind.DIVIDE_INT, TokenKind.MODULUS);
+
+  /**
+   * Every operator that combines two operands.
+   */
+  public static final long BINARY =
+      ASSIGNMENT | LOGICAL | RELATIONAL | SHIFT | ADDITIVE | MULTIPLICATIVE;
+
+  private TokenSet() {
+  }
+
+  /**
+   * @param kinds token kinds
+   * @return set holding the given kinds
+   */
+  public static long of(TokenKind... kinds) {
+    long set = 0;
+    for (final TokenKind kind : kinds) {
+      set |= bit(kind);
+    }
+    return set;
+  }
+
+  public static long bit(TokenKind kind) {
+    return 1L << kind.ordinal();
+  }
+
+  public static boolean contains(long set, TokenKind kind) {
+    return (set & (1L << kind.ordinal())) != 0;
+  }
+
+}
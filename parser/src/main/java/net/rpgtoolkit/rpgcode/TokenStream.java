@@ -0,0 +1,367 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import java.util.Arrays;
+
+/**
+ * The complete token sequence of a source, stored as parallel primitive
+ * arrays instead of one {@link Token} instance per lexeme. Tokens are
+ * addressed by index, which allows arbitrary lookahead and backtracking
+ * without rescanning.
+ *
+ * The stream also records a checkpoint at the start of every line, that is
+ * at every token following an end-of-line token. The lexer carries no state
+ * across a line break other than its position, so it can be restarted at
+ * any checkpoint. After an edit, {@link #relex} restarts the lexer at the
+ * checkpoint before the edit and stops at the first line start after it
+ * that lines up with a line start of the old stream.
+ *
+ * Tokens carry offsets only; their lines and columns are found through the
+ * {@link LineMap} of the source. The decoded values of number tokens are
+ * kept in a side table that is only allocated once a number is added.
+ *
+ * Not thread-safe.
+ */
+public class TokenStream {
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  // token kind ordinal is stored in the low bits of the kind array,
+  // the keyword tag in the remaining high bits
+
+  private static final int KIND_BITS = 8;
+  private static final int KIND_MASK = (1 << KIND_BITS) - 1;
+  private static final TokenKind[] KINDS = TokenKind.values();
+
+  private int[] kinds;
+  private int[] offsets;
+  private int[] lengths;
+  private double[] values;
+  private int size;
+  private int[] checkpoints;
+  private int lines;
+  private int damageStart;
+  private int damageEnd;
+
+  public TokenStream() {
+    this.kinds = new int[INITIAL_CAPACITY];
+    this.offsets = new int[INITIAL_CAPACITY];
+    this.lengths = new int[INITIAL_CAPACITY];
+    this.size = 0;
+    this.checkpoints = new int[INITIAL_CAPACITY];
+    this.lines = 0;
+  }
+
+  /**
+   * Scans every remaining token from the lexer, up to and including
+   * the {@link TokenKind#END} token.
+   *
+   * @param lexer lexer to scan
+   */
+  public TokenStream(Lexer lexer) {
+    this();
+    if (lexer == null) {
+      throw new NullPointerException();
+    }
+    final Token token = new Token();
+    do {
+      lexer.scan(token);
+      add(token);
+    } while (token.kind != TokenKind.END);
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  public void add(Token token) {
+    if (this.size == this.kinds.length) {
+      grow();
+    }
+    final int i = this.size++;
+    if (i == 0 || kind(i - 1) == TokenKind.EOL) {
+      checkpoint(i);
+    }
+    this.kinds[i] = (token.tag << KIND_BITS) | token.kind.ordinal();
+    this.offsets[i] = token.offset;
+    this.lengths[i] = token.length;
+    if (this.values == null && token.kind == TokenKind.NUMBER) {
+      this.values = new double[this.kinds.length];
+    }
+    if (this.values != null) {
+      this.values[i] = token.kind == TokenKind.NUMBER ? token.value : 0;
+    }
+  }
+
+  public TokenKind kind(int index) {
+    return KINDS[this.kinds[check(index)] & KIND_MASK];
+  }
+
+  public int tag(int index) {
+    return this.kinds[check(index)] >>> KIND_BITS;
+  }
+
+  public int offset(int index) {
+    return this.offsets[check(index)];
+  }
+
+  public int length(int index) {
+    return this.lengths[check(index)];
+  }
+
+  /**
+   * @param index token index
+   * @return decoded value of a number token, or zero for any other token
+   */
+  public double value(int index) {
+    check(index);
+    return this.values != null ? this.values[index] : 0;
+  }
+
+  /**
+   * Copies the token at the given index into a token instance.
+   *
+   * @param index token index
+   * @param token token to copy into
+   * @return the given token
+   */
+  public Token get(int index, Token token) {
+    check(index);
+    token.kind = KINDS[this.kinds[index] & KIND_MASK];
+    token.tag = this.kinds[index] >>> KIND_BITS;
+    token.offset = this.offsets[index];
+    token.length = this.lengths[index];
+    token.value = this.values != null ? this.values[index] : 0;
+    return token;
+  }
+
+  /**
+   * Updates the stream after an edit of its source, lexing as little of
+   * the new source as possible.
+   *
+   * Lexing restarts at the start of the line holding the first token
+   * touched by the edit. It stops at the first line start past the edit
+   * that was also a line start in the old stream; the old tokens from
+   * there on are kept, shifted by the change in length.
+   * The indices of the tokens that were replaced are available from
+   * {@link #getDamageStart()} and {@link #getDamageEnd()} afterwards.
+   *
+   * @param lexer lexer over the edited source
+   * @param offset start of the edit
+   * @param removed number of characters removed
+   * @param inserted number of characters inserted
+   */
+  public void relex(Lexer lexer, int offset, int removed, int inserted) {
+
+    if (lexer == null) {
+      throw new NullPointerException();
+    }
+
+    final int delta = inserted - removed;
+    final int limit = offset + inserted;
+
+    // restart at the line holding the first token that ends at or after
+    // the edit, since the edit may extend that token
+
+    final int touched = Math.min(touching(offset), Math.max(this.size - 1, 0));
+    final int start = this.lines > 0 ? this.checkpoints[line(touched, 0)] : 0;
+    final LexerContext context = lexer.getContext();
+
+    context.offset = start == 0 ? 0 : this.offsets[start - 1] + 1;
+
+    // lex until a line start lines up with the old stream
+
+    final TokenStream fresh = new TokenStream();
+    final Token token = new Token();
+    int resume = this.size;
+
+    do {
+      lexer.scan(token);
+      fresh.add(token);
+      if (token.kind == TokenKind.EOL && token.offset >= limit) {
+        final int old = find(token.offset - delta, start);
+        if (old >= 0 && kind(old) == TokenKind.EOL) {
+          resume = old + 1;
+          break;
+        }
+      }
+    } while (token.kind != TokenKind.END);
+
+    splice(start, resume, fresh, delta);
+
+    this.damageStart = start;
+    this.damageEnd = start + fresh.size;
+
+  }
+
+  /**
+   * @return index of the first token replaced by the last {@link #relex}
+   */
+  public int getDamageStart() {
+    return this.damageStart;
+  }
+
+  /**
+   * @return index after the last token replaced by the last {@link #relex}
+   */
+  public int getDamageEnd() {
+    return this.damageEnd;
+  }
+
+  /**
+   * Replaces the tokens in [start, resume) with a fresh run of tokens and
+   * shifts the tokens after them.
+   */
+  private void splice(int start, int resume, TokenStream fresh, int delta) {
+
+    final int tail = this.size - resume;
+    final int size = start + fresh.size + tail;
+
+    while (size > this.kinds.length) {
+      grow();
+    }
+
+    final int target = start + fresh.size;
+
+    System.arraycopy(this.kinds, resume, this.kinds, target, tail);
+    System.arraycopy(this.offsets, resume, this.offsets, target, tail);
+    System.arraycopy(this.lengths, resume, this.lengths, target, tail);
+
+    if (fresh.values != null && this.values == null) {
+      this.values = new double[this.kinds.length];
+    }
+
+    if (this.values != null) {
+      System.arraycopy(this.values, resume, this.values, target, tail);
+      if (fresh.values != null) {
+        System.arraycopy(fresh.values, 0, this.values, start, fresh.size);
+      } else {
+        Arrays.fill(this.values, start, target, 0);
+      }
+    }
+
+    for (int i = target; i < size; i++) {
+      this.offsets[i] += delta;
+    }
+
+    System.arraycopy(fresh.kinds, 0, this.kinds, start, fresh.size);
+    System.arraycopy(fresh.offsets, 0, this.offsets, start, fresh.size);
+    System.arraycopy(fresh.lengths, 0, this.lengths, start, fresh.size);
+
+    this.size = size;
+
+    // start and resume are both line starts, so the checkpoints before
+    // the replaced tokens stay, those of the fresh run take their place,
+    // and those of the kept tokens move by the change in token count
+
+    final int first = this.lines > 0 ? line(start, 0) : 0;
+    final int next = tail > 0 ? line(resume, first) : this.lines;
+    final int moved = this.lines - next;
+    final int lines = first + fresh.lines + moved;
+
+    if (lines > this.checkpoints.length) {
+      this.checkpoints = Arrays.copyOf(this.checkpoints,
+          Math.max(lines, this.checkpoints.length << 1));
+    }
+
+    System.arraycopy(this.checkpoints, next, this.checkpoints, first + fresh.lines, moved);
+
+    for (int i = first + fresh.lines; i < lines; i++) {
+      this.checkpoints[i] += target - resume;
+    }
+
+    for (int i = 0; i < fresh.lines; i++) {
+      this.checkpoints[first + i] = start + fresh.checkpoints[i];
+    }
+
+    this.lines = lines;
+
+  }
+
+  /**
+   * @return index of the first token ending at or after an offset
+   */
+  private int touching(int offset) {
+    int lo = 0;
+    int hi = this.size;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (this.offsets[mid] + this.lengths[mid] < offset) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * @return index of the token at an offset, searching from a token
+   * index, or -1 if no token starts there
+   */
+  private int find(int offset, int from) {
+    int lo = from;
+    int hi = this.size - 1;
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (this.offsets[mid] < offset) {
+        lo = mid + 1;
+      } else if (this.offsets[mid] > offset) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return slot of the last checkpoint at or before a token index,
+   * searching from a checkpoint slot
+   */
+  private int line(int index, int from) {
+    int lo = from;
+    int hi = this.lines - 1;
+    while (lo < hi) {
+      final int mid = (lo + hi + 1) >>> 1;
+      if (this.checkpoints[mid] <= index) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  private void checkpoint(int index) {
+    if (this.lines == this.checkpoints.length) {
+      this.checkpoints = Arrays.copyOf(this.checkpoints, this.lines << 1);
+    }
+    this.checkpoints[this.lines++] = index;
+  }
+
+  private int check(int index) {
+    if (index < 0 || index >= this.size) {
+      throw new IndexOutOfBoundsException(
+          String.format("token %d of %d", index, this.size));
+    }
+    return index;
+  }
+
+  private void grow() {
+    final int capacity = this.kinds.length << 1;
+    this.kinds = Arrays.copyOf(this.kinds, capacity);
+    this.offsets = Arrays.copyOf(this.offsets, capacity);
+    this.lengths = Arrays.copyOf(this.lengths, capacity);
+    if (this.values != null) {
+      this.values = Arrays.copyOf(this.values, capacity);
+    }
+  }
+
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import java.util.Arrays;
+
+/**
+ * Side table of the comments of a source, filled by a {@link Lexer} that
+ * routes comments here instead of returning them as tokens. Comments are
+ * stored in source order as offset and length pairs, for tools such as
+ * formatters and documentation generators that need them.
+ *
+ * Not thread-safe.
+ */
+public class Trivia {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private int[] offsets;
+  private int[] lengths;
+  private int size;
+
+  public Trivia() {
+    this.offsets = new int[INITIAL_CAPACITY];
+    this.lengths = new int[INITIAL_CAPACITY];
+    this.size = 0;
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  public int offset(int index) {
+    return this.offsets[check(index)];
+  }
+
+  public int length(int index) {
+    return this.lengths[check(index)];
+  }
+
+  public void add(int offset, int length) {
+    if (this.size == this.offsets.length) {
+      final int capacity = this.size << 1;
+      this.offsets = Arrays.copyOf(this.offsets, capacity);
+      this.lengths = Arrays.copyOf(this.lengths, capacity);
+    }
+    this.offsets[this.size] = offset;
+    this.lengths[this.size] = length;
+    this.size++;
+  }
+
+  public void clear() {
+    this.size = 0;
+  }
+
+  private int check(int index) {
+    if (index < 0 || index >= this.size) {
+      throw new IndexOutOfBoundsException(
+          String.format("comment %d of %d", index, this.size));
+    }
+    return index;
+  }
+
+}
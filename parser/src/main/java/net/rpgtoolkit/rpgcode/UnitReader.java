@@ -0,0 +1,479 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import net.rpgtoolkit.blade.ir.CompilationUnit;
+import net.rpgtoolkit.blade.ir.SourceLocation;
+import net.rpgtoolkit.blade.ir.SourceRange;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads compilation units written by a {@link UnitWriter}. Units are
+ * decoded straight from a byte buffer, which may be mapped from a file, so
+ * a pre-parsed program is loaded without being copied into memory first.
+ *
+ * Units are read one after the other from the current position of the
+ * buffer. Malformed input is reported as an {@link IOException}.
+ *
+ * Not thread-safe.
+ */
+public class UnitReader {
+
+  private static final NodeKind[] KINDS = NodeKind.values();
+
+  private final ByteBuffer buffer;
+  private byte[] scratch;
+
+  // string table and line map of the unit being read
+
+  private String[] values;
+  private LineMap lines;
+
+  // fields of the node read last by readNode()
+
+  private NodeKind kind;
+  private int tag;
+  private int start;
+  private int end;
+  private int children;
+  private long payload;
+
+  /**
+   * @param buffer buffer holding encoded units
+   */
+  public UnitReader(ByteBuffer buffer) {
+    if (buffer == null) {
+      throw new NullPointerException();
+    }
+    this.buffer = buffer;
+    this.scratch = new byte[64];
+  }
+
+  /**
+   * Creates a reader over a file mapped into memory.
+   *
+   * @param file file holding encoded units
+   * @return reader
+   * @throws IOException if the file cannot be mapped
+   */
+  public static UnitReader open(File file) throws IOException {
+    try (final RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      final FileChannel channel = in.getChannel();
+      return new UnitReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Decodes a compilation unit from a byte array.
+   *
+   * @param bytes encoded unit
+   * @return compilation unit
+   * @throws IOException if the unit is malformed
+   */
+  public static CompilationUnit decode(byte[] bytes) throws IOException {
+    return new UnitReader(ByteBuffer.wrap(bytes)).read();
+  }
+
+  /**
+   * @return whether another unit follows in the buffer
+   */
+  public boolean hasNext() {
+    return this.buffer.hasRemaining();
+  }
+
+  /**
+   * Reads the next compilation unit.
+   *
+   * @return compilation unit
+   * @throws IOException if the unit is malformed
+   */
+  public CompilationUnit read() throws IOException {
+    try {
+      return decodeUnit();
+    } catch (BufferUnderflowException ex) {
+      throw new IOException("unexpected end of unit");
+    } catch (RuntimeException ex) {
+      // a well-formed tree whose nodes have the wrong children or tags
+      throw new IOException("node does not match the layout of its kind", ex);
+    } finally {
+      this.values = null;
+      this.lines = null;
+    }
+  }
+
+  /**
+   * Reads the next unit as a flat tree, without building its IR nodes.
+   *
+   * @return flat tree
+   * @throws IOException if the unit is malformed
+   */
+  public FlatTree readTree() throws IOException {
+    try {
+      return decodeTree();
+    } catch (BufferUnderflowException ex) {
+      throw new IOException("unexpected end of unit");
+    } finally {
+      this.values = null;
+      this.lines = null;
+    }
+  }
+
+  /**
+   * Builds the IR of a unit while its nodes are read. Nodes come in
+   * pre-order, so a node is built once its last child is; built nodes wait
+   * on a stack until their parent is built from them.
+   */
+  private CompilationUnit decodeUnit() throws IOException {
+
+    final int size = readHeader();
+    final LineMap lines = this.lines;
+
+    // open parents with their fields and the number of children still to
+    // come, and the built nodes waiting for their parents
+
+    NodeKind[] kinds = new NodeKind[16];
+    int[] tags = new int[16];
+    int[] starts = new int[16];
+    int[] ends = new int[16];
+    long[] payloads = new long[16];
+    int[] remaining = new int[16];
+    int[] bases = new int[16];
+    int[] startLines = new int[16];
+    int depth = 0;
+    Object[] built = new Object[16];
+    int count = 0;
+    int previous = 0;
+    int line = 0;
+
+    for (int i = 0; i < size; i++) {
+
+      readNode(previous);
+
+      if (depth == 0 && i > 0) {
+        throw new IOException("unit has more than one root");
+      }
+
+      // starts do not decrease in pre-order, so the line of each is found
+      // by stepping forward from the line of the one before
+
+      previous = this.start;
+      line = lines.line(this.start, line);
+
+      if (this.children > 0) {
+        if (depth == kinds.length) {
+          final int capacity = depth << 1;
+          kinds = Arrays.copyOf(kinds, capacity);
+          tags = Arrays.copyOf(tags, capacity);
+          starts = Arrays.copyOf(starts, capacity);
+          ends = Arrays.copyOf(ends, capacity);
+          payloads = Arrays.copyOf(payloads, capacity);
+          remaining = Arrays.copyOf(remaining, capacity);
+          bases = Arrays.copyOf(bases, capacity);
+          startLines = Arrays.copyOf(startLines, capacity);
+        }
+        kinds[depth] = this.kind;
+        tags[depth] = this.tag;
+        starts[depth] = this.start;
+        ends[depth] = this.end;
+        payloads[depth] = this.payload;
+        remaining[depth] = this.children;
+        bases[depth] = count;
+        startLines[depth] = line;
+        depth++;
+        continue;
+      }
+
+      Object node = build(this.kind, this.tag, this.start, this.end, this.payload,
+          line, built, count, 0);
+
+      // a node without children may complete its parent, and so on up
+
+      while (true) {
+        if (count == built.length) {
+          built = Arrays.copyOf(built, count << 1);
+        }
+        built[count++] = node;
+        if (depth == 0 || --remaining[depth - 1] > 0) {
+          break;
+        }
+        depth--;
+        final int base = bases[depth];
+        node = build(kinds[depth], tags[depth], starts[depth], ends[depth], payloads[depth],
+            startLines[depth], built, base, count - base);
+        Arrays.fill(built, base, count, null);
+        count = base;
+      }
+
+    }
+
+    if (depth > 0 || count != 1) {
+      throw new IOException("unit ends inside a node");
+    }
+
+    if (!(built[0] instanceof CompilationUnit)) {
+      throw new IOException("unit does not start with a compilation unit");
+    }
+
+    return (CompilationUnit) built[0];
+
+  }
+
+  private Object build(NodeKind kind, int tag, int start, int end, long payload,
+                       int line, Object[] children, int from, int count) {
+
+    SourceRange range = null;
+
+    // most nodes end on the line they start on or soon after it
+
+    if (kind != NodeKind.EMPTY) {
+      range = SourceRange.empty();
+      locate(range.getStartLocation(), start, line);
+      locate(range.getEndLocation(), end, this.lines.line(end, line));
+    }
+
+    return FlatTree.build(kind, tag, range,
+        FlatTree.hasString(kind) ? this.values[(int) payload] : null,
+        kind == NodeKind.NUMBER ? Double.longBitsToDouble(payload) : 0,
+        children, from, count);
+
+  }
+
+  private void locate(SourceLocation location, int offset, int line) {
+    location.setOffset(offset);
+    location.setLine(line);
+    location.setColumn(offset - this.lines.start(line));
+  }
+
+  private FlatTree decodeTree() throws IOException {
+
+    final int size = readHeader();
+    final String[] values = this.values;
+    final FlatTree tree = new FlatTree(this.lines);
+
+    for (int i = 0; i < values.length; i++) {
+      if (tree.string(values[i]) != i) {
+        throw new IOException("duplicate string in unit");
+      }
+    }
+
+    // open parents with the number of children still to come and the
+    // last child read so far
+
+    int[] parents = new int[16];
+    int[] remaining = new int[16];
+    int[] last = new int[16];
+    int depth = 0;
+    int previous = 0;
+
+    for (int i = 0; i < size; i++) {
+
+      readNode(previous);
+
+      if (depth == 0 && i > 0) {
+        throw new IOException("unit has more than one root");
+      }
+
+      final int node;
+
+      if (depth > 0) {
+        node = tree.add(this.kind, this.tag, this.start, this.end, this.payload,
+            last[depth - 1], parents[depth - 1]);
+        last[depth - 1] = node;
+        remaining[depth - 1]--;
+      } else {
+        node = tree.add(this.kind, this.tag, this.start, this.end, this.payload, -1, -1);
+      }
+
+      if (this.children > 0) {
+        if (depth == parents.length) {
+          parents = Arrays.copyOf(parents, depth << 1);
+          remaining = Arrays.copyOf(remaining, depth << 1);
+          last = Arrays.copyOf(last, depth << 1);
+        }
+        parents[depth] = node;
+        remaining[depth] = this.children;
+        last[depth] = -1;
+        depth++;
+      } else {
+        while (depth > 0 && remaining[depth - 1] == 0) {
+          depth--;
+        }
+      }
+
+      previous = this.start;
+
+    }
+
+    if (depth > 0 || size == 0) {
+      throw new IOException("unit ends inside a node");
+    }
+
+    if (tree.kind(0) != NodeKind.UNIT) {
+      throw new IOException("unit does not start with a compilation unit");
+    }
+
+    return tree;
+
+  }
+
+  /**
+   * Reads the header, string table and line starts of a unit.
+   *
+   * @return number of nodes of the unit
+   */
+  private int readHeader() throws IOException {
+
+    if (this.buffer.getInt() != UnitWriter.MAGIC) {
+      throw new IOException("not an encoded unit");
+    }
+
+    final int version = readVarint();
+
+    if (version != UnitWriter.VERSION) {
+      throw new IOException(String.format(
+          "unsupported unit format version %d", version));
+    }
+
+    final int strings = readCount();
+    final String[] values = new String[strings];
+
+    for (int i = 0; i < strings; i++) {
+      values[i] = readString();
+    }
+
+    final int lines = readCount();
+
+    if (lines == 0) {
+      throw new IOException("unit has no lines");
+    }
+
+    final int[] starts = new int[lines];
+
+    for (int i = 1; i < lines; i++) {
+      starts[i] = starts[i - 1] + readVarint();
+    }
+
+    this.values = values;
+    this.lines = new LineMap(starts, lines);
+
+    final int size = readCount();
+
+    if (size == 0) {
+      throw new IOException("unit ends inside a node");
+    }
+
+    return size;
+
+  }
+
+  /**
+   * Reads the next node into the node fields of the reader.
+   *
+   * @param previous start of the node before it
+   */
+  private void readNode(int previous) throws IOException {
+
+    final int header = this.buffer.get() & 0xff;
+    final int ordinal = header & ((1 << UnitWriter.KIND_BITS) - 1);
+
+    if (ordinal >= KINDS.length) {
+      throw new IOException(String.format("unknown node kind %d", ordinal));
+    }
+
+    final NodeKind kind = KINDS[ordinal];
+    int tag = header >>> UnitWriter.KIND_BITS;
+
+    if (tag == UnitWriter.TAG_ESCAPE) {
+      tag += readVarint();
+    }
+
+    this.start = previous + unzigzag(readVarint());
+    this.end = this.start + unzigzag(readVarint());
+    this.children = readVarint();
+
+    long payload = 0;
+
+    switch (kind) {
+      case NUMBER:
+        if (tag == UnitWriter.INTEGER) {
+          payload = Double.doubleToRawLongBits(unzigzag(readVarint()));
+        } else if (tag == UnitWriter.DOUBLE) {
+          payload = this.buffer.getLong();
+        } else {
+          throw new IOException(String.format("unknown number format %d", tag));
+        }
+        tag = 0;
+        break;
+      case UNIT:
+      case IDENTIFIER:
+      case STRING:
+        payload = readVarint();
+        if (payload < 0 || payload >= this.values.length) {
+          throw new IOException(String.format("string %d out of range", payload));
+        }
+        break;
+      default:
+        break;
+    }
+
+    if (this.children < 0) {
+      throw new IOException(String.format("child count %d out of range", this.children));
+    }
+
+    this.kind = kind;
+    this.tag = tag;
+    this.payload = payload;
+
+  }
+
+  private static int unzigzag(int value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private int readVarint() throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      final int b = this.buffer.get();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IOException("malformed varint");
+  }
+
+  private int readCount() throws IOException {
+    final int count = readVarint();
+    if (count < 0 || count > this.buffer.remaining()) {
+      throw new IOException(String.format("count %d out of range", count));
+    }
+    return count;
+  }
+
+  private String readString() throws IOException {
+    final int length = readCount();
+    if (this.buffer.hasArray()) {
+      final int offset = this.buffer.arrayOffset() + this.buffer.position();
+      this.buffer.position(this.buffer.position() + length);
+      return new String(this.buffer.array(), offset, length, UnitWriter.UTF8);
+    }
+    if (length > this.scratch.length) {
+      this.scratch = new byte[Math.max(length, this.scratch.length << 1)];
+    }
+    this.buffer.get(this.scratch, 0, length);
+    return new String(this.scratch, 0, length, UnitWriter.UTF8);
+  }
+
+}
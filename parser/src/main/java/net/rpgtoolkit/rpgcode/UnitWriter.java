@@ -0,0 +1,272 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import net.rpgtoolkit.blade.ir.CompilationUnit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes compilation units in a compact binary format, read back by a
+ * {@link UnitReader}. Loading a unit this way skips lexing and parsing
+ * altogether, so programs can be shipped pre-parsed.
+ *
+ * The format is the {@link FlatTree} of the unit, written in pre-order.
+ * All numbers are unsigned LEB128 varints unless noted.
+ *
+ * <pre>
+ * header   magic (4 bytes, big-endian), format version
+ * strings  count, then for each: UTF-8 length, UTF-8 bytes
+ * lines    count, then for each line after the first: start minus the
+ *          start of the line before it
+ * nodes    count, then for each: header (1 byte), zigzag start minus
+ *          the start of the node before it, zigzag length, child count,
+ *          payload
+ * </pre>
+ *
+ * The low five bits of a node header hold the kind and the high three its
+ * tag; a tag of seven or more is written as seven, followed by the rest of
+ * the tag. UNIT, IDENTIFIER and STRING nodes hold a string index as their
+ * payload. NUMBER nodes have no tag; instead the tag bits say whether the
+ * value is an integer, held as a zigzag varint, or the bits of a double
+ * (8 bytes, big-endian). Other nodes have no payload. The format version
+ * must be bumped whenever {@link NodeKind} or the layout of a node kind
+ * changes.
+ *
+ * Output is buffered, and the underlying stream is flushed after each
+ * unit.
+ *
+ * Not thread-safe.
+ */
+public class UnitWriter {
+
+  static final int MAGIC = 0x52504755;
+  static final int VERSION = 1;
+
+  static final int KIND_BITS = 5;
+  static final int TAG_ESCAPE = 7;
+
+  static final int DOUBLE = 0;
+  static final int INTEGER = 1;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final OutputStream out;
+  private final byte[] buffer;
+  private int position;
+
+  /**
+   * @param out stream receiving the encoded units
+   */
+  public UnitWriter(OutputStream out) {
+    if (out == null) {
+      throw new NullPointerException();
+    }
+    this.out = out;
+    this.buffer = new byte[BUFFER_SIZE];
+    this.position = 0;
+  }
+
+  /**
+   * Encodes a compilation unit into a byte array.
+   *
+   * @param unit compilation unit
+   * @param lines line map of the source of the unit
+   * @return encoded unit
+   */
+  public static byte[] encode(CompilationUnit unit, LineMap lines) {
+    return encode(FlatTree.of(unit, lines));
+  }
+
+  /**
+   * Encodes a flat tree holding a compilation unit into a byte array.
+   *
+   * @param tree flat tree
+   * @return encoded unit
+   */
+  public static byte[] encode(FlatTree tree) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      new UnitWriter(bytes).write(tree);
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Writes a compilation unit.
+   *
+   * @param unit compilation unit
+   * @param lines line map of the source of the unit
+   * @throws IOException if the stream cannot be written
+   */
+  public void write(CompilationUnit unit, LineMap lines) throws IOException {
+    write(FlatTree.of(unit, lines));
+  }
+
+  /**
+   * Writes a flat tree holding a compilation unit.
+   *
+   * @param tree flat tree
+   * @throws IOException if the stream cannot be written
+   */
+  public void write(FlatTree tree) throws IOException {
+
+    if (tree.size() == 0 || tree.kind(0) != NodeKind.UNIT) {
+      throw new IllegalArgumentException("tree does not hold a compilation unit");
+    }
+
+    writeInt(MAGIC);
+    writeVarint(VERSION);
+
+    final int strings = tree.stringCount();
+
+    writeVarint(strings);
+
+    for (int i = 0; i < strings; i++) {
+      final byte[] bytes = tree.stringAt(i).getBytes(UTF8);
+      writeVarint(bytes.length);
+      writeBytes(bytes);
+    }
+
+    final LineMap lines = tree.getLineMap();
+    final int count = lines.size();
+
+    writeVarint(count);
+
+    for (int i = 1; i < count; i++) {
+      writeVarint(lines.start(i) - lines.start(i - 1));
+    }
+
+    final int size = tree.size();
+    int previous = 0;
+
+    writeVarint(size);
+
+    for (int node = 0; node < size; node++) {
+
+      final NodeKind kind = tree.kind(node);
+      final int start = tree.start(node);
+
+      int children = 0;
+
+      for (int child = tree.firstChild(node); child >= 0; child = tree.nextSibling(child)) {
+        children++;
+      }
+
+      final long payload = tree.payload(node);
+      int tag = tree.tag(node);
+
+      if (kind == NodeKind.NUMBER) {
+        tag = isInteger(payload) ? INTEGER : DOUBLE;
+      }
+
+      writeByte(kind.ordinal() | Math.min(tag, TAG_ESCAPE) << KIND_BITS);
+
+      if (tag >= TAG_ESCAPE) {
+        writeVarint(tag - TAG_ESCAPE);
+      }
+
+      writeVarint(zigzag(start - previous));
+      writeVarint(zigzag(tree.end(node) - start));
+      writeVarint(children);
+
+      switch (kind) {
+        case NUMBER:
+          if (tag == INTEGER) {
+            writeVarint(zigzag((int) Double.longBitsToDouble(payload)));
+          } else {
+            writeLong(payload);
+          }
+          break;
+        case UNIT:
+        case IDENTIFIER:
+        case STRING:
+          writeVarint((int) payload);
+          break;
+        default:
+          break;
+      }
+
+      previous = start;
+
+    }
+
+    flush();
+
+  }
+
+  /**
+   * @return whether the bits of a double are those of an int, which
+   * excludes negative zero
+   */
+  private static boolean isInteger(long bits) {
+    final double value = Double.longBitsToDouble(bits);
+    return Double.doubleToRawLongBits((int) value) == bits;
+  }
+
+  private static int zigzag(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  private void writeVarint(int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    writeByte(value);
+  }
+
+  private void writeInt(int value) throws IOException {
+    writeByte(value >>> 24);
+    writeByte(value >>> 16);
+    writeByte(value >>> 8);
+    writeByte(value);
+  }
+
+  private void writeLong(long value) throws IOException {
+    writeInt((int) (value >>> 32));
+    writeInt((int) value);
+  }
+
+  private void writeByte(int value) throws IOException {
+    if (this.position == this.buffer.length) {
+      drain();
+    }
+    this.buffer[this.position++] = (byte) value;
+  }
+
+  private void writeBytes(byte[] bytes) throws IOException {
+    if (bytes.length > this.buffer.length - this.position) {
+      drain();
+      if (bytes.length > this.buffer.length) {
+        this.out.write(bytes);
+        return;
+      }
+    }
+    System.arraycopy(bytes, 0, this.buffer, this.position, bytes.length);
+    this.position += bytes.length;
+  }
+
+  private void drain() throws IOException {
+    this.out.write(this.buffer, 0, this.position);
+    this.position = 0;
+  }
+
+  private void flush() throws IOException {
+    drain();
+    this.out.flush();
+  }
+
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import net.rpgtoolkit.blade.ir.expressions.AdditiveBinaryExpression;
+import net.rpgtoolkit.blade.ir.expressions.AssignmentExpression;
+import net.rpgtoolkit.blade.ir.expressions.LogicalBinaryExpression;
+import net.rpgtoolkit.blade.ir.expressions.MultiplicativeBinaryExpression;
+import net.rpgtoolkit.blade.ir.expressions.RelationalBinaryExpression;
+import net.rpgtoolkit.blade.ir.expressions.ShiftBinaryExpression;
+import net.rpgtoolkit.blade.ir.expressions.UnaryExpression;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the shape of the trees built by the precedence-climbing
+ * expression parser, through the flat tree of the parsed unit.
+ */
+public class ExpressionParserTest {
+
+  @Test
+  public void parsesBinaryOperatorsLeftAssociative() {
+    assertEquals("SUBTRACT(SUBTRACT(a, b), c)", expression("a - b - c"));
+    assertEquals("SUBTRACT(ADD(a, b), c)", expression("a + b - c"));
+    assertEquals("ADD(SUBTRACT(a, b), c)", expression("a - b + c"));
+    assertEquals("MODULUS(MULTIPLY(DIVIDE(a, b), c), d)", expression("a / b * c % d"));
+    assertEquals("DIVIDE(MODULUS(MULTIPLY(a, b), c), d)", expression("a * b % c / d"));
+    assertEquals("SHR(SHL(a, b), c)", expression("a << b >> c"));
+    assertEquals("SHL(SHR(a, b), c)", expression("a >> b << c"));
+    assertEquals("NEQ(EQ(a, b), c)", expression("a == b != c"));
+    assertEquals("GTE(LT(a, b), c)", expression("a < b >= c"));
+    assertEquals("OR(AND(a, b), c)", expression("a && b || c"));
+    assertEquals("AND(OR(a, b), c)", expression("a || b && c"));
+  }
+
+  @Test
+  public void parsesAssignmentRightAssociative() {
+    assertEquals("ASSIGN(a, ASSIGN(b, c))", expression("a = b = c"));
+    assertEquals("ASSIGN_ADD(a, ASSIGN_SUB(b, c))", expression("a += b -= c"));
+  }
+
+  @Test
+  public void bindsByPrecedence() {
+    assertEquals("SUBTRACT(ADD(a, MULTIPLY(b, c)), DIVIDE(d, e))",
+        expression("a + b * c - d / e"));
+    assertEquals("SUBTRACT(SUBTRACT(a, b), SUBTRACT(c, d))",
+        expression("(a - b) - (c - d)"));
+    assertEquals("SUBTRACT(a, NEGATIVE(b))", expression("a - -b"));
+  }
+
+  @Test
+  public void parsesLongExpressionsWithoutRecursion() {
+
+    final int terms = 100000;
+    final StringBuilder source = new StringBuilder("function f() {\n x = 0");
+
+    for (int i = 1; i < terms; i++) {
+      source.append(" + ").append(i);
+    }
+
+    source.append("\n}\n");
+
+    final FlatTree tree = parse(source.toString());
+
+    // the chain of left operands holds every operator, innermost last
+
+    int node = assignment(tree);
+    node = tree.nextSibling(tree.firstChild(node));
+
+    int operators = 0;
+
+    while (tree.kind(node) == NodeKind.ADDITIVE) {
+      assertEquals(terms - 1 - operators,
+          tree.number(tree.nextSibling(tree.firstChild(node))), 0);
+      node = tree.firstChild(node);
+      operators++;
+    }
+
+    assertEquals(terms - 1, operators);
+    assertEquals(NodeKind.NUMBER, tree.kind(node));
+    assertEquals(0, tree.number(node), 0);
+
+  }
+
+  @Test
+  public void parsesLongAssignmentChainsWithoutRecursion() {
+
+    final int targets = 100000;
+    final StringBuilder source = new StringBuilder("function f() {\n x");
+
+    for (int i = 0; i < targets; i++) {
+      source.append(" = x");
+    }
+
+    source.append("\n}\n");
+
+    final FlatTree tree = parse(source.toString());
+
+    int node = assignment(tree);
+    int assignments = 0;
+
+    while (tree.kind(node) == NodeKind.ASSIGNMENT) {
+      node = tree.nextSibling(tree.firstChild(node));
+      assignments++;
+    }
+
+    assertEquals(targets, assignments);
+    assertEquals(NodeKind.IDENTIFIER, tree.kind(node));
+
+  }
+
+  private static FlatTree parse(String source) {
+    final Lexer lexer = new Lexer(source);
+    return FlatTree.of(new Parser(lexer).parse(), lexer.getLineMap());
+  }
+
+  /**
+   * Parses an expression assigned to x, and renders the expression.
+   */
+  private static String expression(String expression) {
+    final FlatTree tree = parse("function f() {\n x = " + expression + "\n}\n");
+    final int node = assignment(tree);
+    final StringBuilder out = new StringBuilder();
+    render(tree, tree.nextSibling(tree.firstChild(node)), out);
+    return out.toString();
+  }
+
+  /**
+   * @return the first assignment in a tree
+   */
+  private static int assignment(FlatTree tree) {
+    for (int i = 0; i < tree.size(); i++) {
+      if (tree.kind(i) == NodeKind.ASSIGNMENT) {
+        return i;
+      }
+    }
+    throw new AssertionError("no assignment in tree");
+  }
+
+  private static void render(FlatTree tree, int node, StringBuilder out) {
+    if (tree.kind(node) == NodeKind.IDENTIFIER) {
+      out.append(tree.string(node));
+      return;
+    }
+    out.append(operator(tree, node)).append('(');
+    for (int child = tree.firstChild(node); child >= 0; child = tree.nextSibling(child)) {
+      if (child != tree.firstChild(node)) {
+        out.append(", ");
+      }
+      render(tree, child, out);
+    }
+    out.append(')');
+  }
+
+  /**
+   * @return name of the operator of a node, from its tag, or the name of
+   * its kind if it has no operator
+   */
+  private static String operator(FlatTree tree, int node) {
+    final int tag = tree.tag(node);
+    switch (tree.kind(node)) {
+      case ASSIGNMENT:
+        return AssignmentExpression.Operator.values()[tag].name();
+      case LOGICAL:
+        return LogicalBinaryExpression.Operator.values()[tag].name();
+      case RELATIONAL:
+        return RelationalBinaryExpression.Operator.values()[tag].name();
+      case SHIFT:
+        return ShiftBinaryExpression.Operator.values()[tag].name();
+      case ADDITIVE:
+        return AdditiveBinaryExpression.Operator.values()[tag].name();
+      case MULTIPLICATIVE:
+        return MultiplicativeBinaryExpression.Operator.values()[tag].name();
+      case UNARY:
+        return UnaryExpression.Operator.values()[tag].name();
+      default:
+        return tree.kind(node).name();
+    }
+  }
+
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import net.rpgtoolkit.blade.ir.CompilationUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Round-trips parsed units through a {@link FlatTree} and back.
+ */
+public class FlatTreeTest {
+
+  @Test
+  public void rebuildsParsedUnits() {
+    for (final ProgramGenerator.Shape shape : ProgramGenerator.Shape.values()) {
+      for (long seed = 1; seed <= 3; seed++) {
+        final Lexer lexer = new Lexer(new ProgramGenerator(seed, shape).generate(32 * 1024));
+        final CompilationUnit unit = new Parser(lexer).parse();
+        assertEquals(shape + "/" + seed, Trees.dump(unit),
+            Trees.dump(FlatTree.of(unit, lexer.getLineMap()).toCompilationUnit()));
+      }
+    }
+  }
+
+  @Test
+  public void rebuildsAbstractAndInlineFunctions() {
+    final Lexer lexer = new Lexer(
+        "class A {\nprivate:\n  var x\npublic:\n  function f() { }\n"
+            + "  function g();\n}\ninline function h(a, b) {\n  return a[b]\n}\n");
+    final CompilationUnit unit = new Parser(lexer).parse();
+    assertEquals(Trees.dump(unit),
+        Trees.dump(FlatTree.of(unit, lexer.getLineMap()).toCompilationUnit()));
+  }
+
+  @Test
+  public void walksNodesInPreOrder() {
+
+    final Lexer lexer = new Lexer(
+        new ProgramGenerator(4, ProgramGenerator.Shape.MIXED).generate(16 * 1024));
+    final FlatTree tree = FlatTree.of(new Parser(lexer).parse(), lexer.getLineMap());
+    final FlatTree.Cursor cursor = tree.cursor();
+    int seen = 0;
+
+    walk:
+    while (true) {
+      assertEquals(seen++, cursor.node());
+      if (cursor.firstChild()) {
+        continue;
+      }
+      while (!cursor.nextSibling()) {
+        if (!cursor.parent()) {
+          break walk;
+        }
+      }
+    }
+
+    assertEquals(tree.size(), seen);
+
+  }
+
+  @Test
+  public void flattensRebuiltUnits() {
+
+    // a unit that did not come from the parser flattens the same
+
+    final Lexer lexer = new Lexer(
+        new ProgramGenerator(5, ProgramGenerator.Shape.CLASSES).generate(16 * 1024));
+    final FlatTree tree = FlatTree.of(new Parser(lexer).parse(), lexer.getLineMap());
+    final FlatTree again = FlatTree.of(tree.toCompilationUnit(), lexer.getLineMap());
+
+    assertEquals(tree.size(), again.size());
+
+    for (int i = 0; i < tree.size(); i++) {
+      assertEquals(tree.kind(i), again.kind(i));
+      assertEquals(tree.tag(i), again.tag(i));
+      assertEquals(tree.start(i), again.start(i));
+      assertEquals(tree.end(i), again.end(i));
+      assertEquals(tree.payload(i), again.payload(i));
+      assertEquals(tree.firstChild(i), again.firstChild(i));
+      assertEquals(tree.nextSibling(i), again.nextSibling(i));
+    }
+
+  }
+
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Applies random edits to programs and compares each updated unit with a
+ * full parse of the edited text.
+ */
+public class IncrementalParserTest {
+
+  private static final String[] SNIPPETS = {
+    "x", " ", "\n", "{", "}", "(", ")", ";", "\"s", "// c\n", "i++", "1 + 2",
+    ".5.3", "function f() {\n x = 1\n}\n", "class C {\n var a\n}\n",
+    "if (a) {\n b\n}\n"
+  };
+
+  @Test
+  public void matchesFullParseAfterRandomEdits() {
+    for (final ProgramGenerator.Shape shape : ProgramGenerator.Shape.values()) {
+      edit(new ProgramGenerator(1, shape).generate(8 * 1024), new Random(shape.ordinal()), 150);
+    }
+  }
+
+  @Test
+  public void matchesFullParseAfterEditsAtBoundaries() {
+    final String source = "function a() {\n x = 1\n}\n\nfunction b() {\n y = 2\n}\n";
+    final IncrementalParser parser = new IncrementalParser(source);
+    parser.parse();
+    // at the very start, at a function boundary and at the very end
+    assertMatches(parser, parser.edit(0, 0, "// c\n"));
+    assertMatches(parser, parser.edit(parser.getText().indexOf("function b"), 0, "}\n"));
+    assertMatches(parser, parser.edit(parser.getText().length(), 0, "class C {\n}\n"));
+    assertMatches(parser, parser.edit(0, parser.getText().length(), ""));
+  }
+
+  @Test
+  public void matchesFullParseAfterEditsBeforeParsing() {
+    final IncrementalParser parser = new IncrementalParser("x = 1\n");
+    assertMatches(parser, parser.edit(0, 1, "y"));
+  }
+
+  private static void edit(String source, Random random, int edits) {
+
+    final IncrementalParser parser = new IncrementalParser(source);
+    final StringBuilder text = new StringBuilder(source);
+
+    parser.parse();
+
+    for (int i = 0; i < edits; i++) {
+      final int offset = random.nextInt(text.length() + 1);
+      final int removed = random.nextInt(Math.min(8, text.length() - offset) + 1);
+      final String inserted = random.nextBoolean()
+          ? SNIPPETS[random.nextInt(SNIPPETS.length)] : "";
+      text.replace(offset, offset + removed, inserted);
+      final Object unit = parser.edit(offset, removed, inserted);
+      assertEquals(text.toString(), parser.getText());
+      assertMatches(parser, unit);
+    }
+
+  }
+
+  private static void assertMatches(IncrementalParser parser, Object unit) {
+    final Parser full = new Parser(new Lexer(parser.getText()));
+    assertEquals(Trees.dump(full.parse()), Trees.dump(unit));
+  }
+
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import org.junit.Test;
+
+import java.nio.CharBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the tokens of the lexer with sequences frozen from the lexer
+ * before it scanned a sentinel-terminated array. The sequences differ from
+ * the old lexer's in two places only: the END token is zero-width, and an
+ * unterminated string ends at the end of the input instead of including
+ * the character past it.
+ *
+ * Tokens are written as kind, tag after a colon unless it is zero, offset
+ * and length.
+ */
+public class LexerTest {
+
+  private static final String[][] CASES = {
+      {"function main() {\n  x = 1 + 2.5 * y[3];\n}\n",
+          "KEYWORD:6 0 8, IDENTIFIER 9 4, PAREN_LEFT 13 1, PAREN_RIGHT 14 1, "
+            + "BRACE_LEFT 16 1, EOL 17 1, IDENTIFIER 20 1, ASSIGN 22 1, NUMBER 24 1, "
+            + "PLUS 26 1, NUMBER 28 3, MULTIPLY 32 1, IDENTIFIER 34 1, BRACKET_LEFT 35 1, "
+            + "NUMBER 36 1, BRACKET_RIGHT 37 1, SEMICOLON 38 1, EOL 39 1, BRACE_RIGHT 40 1, "
+            + "EOL 41 1, END 42 0"},
+      {"class Foo {\npublic:\n  var a\n  function b(c, d) { return c << d; }\n}\n",
+          "KEYWORD:1 0 5, IDENTIFIER 6 3, BRACE_LEFT 10 1, EOL 11 1, KEYWORD:2 12 6, "
+            + "COLON 18 1, EOL 19 1, KEYWORD:5 22 3, IDENTIFIER 26 1, EOL 27 1, "
+            + "KEYWORD:6 30 8, IDENTIFIER 39 1, PAREN_LEFT 40 1, IDENTIFIER 41 1, "
+            + "COMMA 42 1, IDENTIFIER 44 1, PAREN_RIGHT 45 1, BRACE_LEFT 47 1, "
+            + "KEYWORD:8 49 6, IDENTIFIER 56 1, SHIFT_LEFT 58 2, IDENTIFIER 61 1, "
+            + "SEMICOLON 62 1, BRACE_RIGHT 64 1, EOL 65 1, BRACE_RIGHT 66 1, EOL 67 1, "
+            + "END 68 0"},
+      {"if (a >= b && !c) { s = \"hi\\n\" } else { i++ }\r\n",
+          "KEYWORD:17 0 2, PAREN_LEFT 3 1, IDENTIFIER 4 1, GREATER_THAN_OR_EQUAL_TO 6 2, "
+            + "IDENTIFIER 9 1, AND_LOGICAL 11 2, NOT 14 1, IDENTIFIER 15 1, "
+            + "PAREN_RIGHT 16 1, BRACE_LEFT 18 1, IDENTIFIER 20 1, ASSIGN 22 1, STRING 24 6, "
+            + "BRACE_RIGHT 31 1, KEYWORD:18 33 4, BRACE_LEFT 38 1, IDENTIFIER 40 1, "
+            + "INCREMENT 41 2, BRACE_RIGHT 44 1, EOL 46 1, END 47 0"},
+      {"// comment\n/* block */ x += .5e3; y = 0x1F\n",
+          "COMMENT 0 10, EOL 10 1, DIVIDE 11 1, MULTIPLY 12 1, IDENTIFIER 14 5, "
+            + "MULTIPLY 20 1, DIVIDE 21 1, IDENTIFIER 23 1, ASSIGN_PLUS 25 2, NUMBER 28 2, "
+            + "IDENTIFIER 30 2, SEMICOLON 32 1, IDENTIFIER 34 1, ASSIGN 36 1, NUMBER 38 1, "
+            + "IDENTIFIER 39 3, EOL 42 1, END 43 0"},
+      {"while (true) { break; continue; } do { } until (false)\n#x\n:label\n",
+          "KEYWORD:11 0 5, PAREN_LEFT 6 1, KEYWORD:24 7 4, PAREN_RIGHT 11 1, "
+            + "BRACE_LEFT 13 1, KEYWORD:15 15 5, SEMICOLON 20 1, KEYWORD:16 22 8, "
+            + "SEMICOLON 30 1, BRACE_RIGHT 32 1, KEYWORD:10 34 2, BRACE_LEFT 37 1, "
+            + "BRACE_RIGHT 39 1, KEYWORD:12 41 5, PAREN_LEFT 47 1, KEYWORD:25 48 5, "
+            + "PAREN_RIGHT 53 1, EOL 54 1, HASH 55 1, IDENTIFIER 56 1, EOL 57 1, COLON 58 1, "
+            + "IDENTIFIER 59 5, EOL 64 1, END 65 0"},
+      {"s = \"abc\nx = 1",
+          "IDENTIFIER 0 1, ASSIGN 2 1, STRING 4 10, END 14 0"},
+      {"t = \"abc",
+          "IDENTIFIER 0 1, ASSIGN 2 1, STRING 4 4, END 8 0"},
+      {"a == b != c <= d > e | f ^ g % h >> i ~= j",
+          "IDENTIFIER 0 1, EQUALS 2 2, IDENTIFIER 5 1, NOT_EQUALS 7 2, IDENTIFIER 10 1, "
+            + "LESS_THAN_OR_EQUAL_TO 12 2, IDENTIFIER 15 1, GREATER_THAN 17 1, "
+            + "IDENTIFIER 19 1, OR_BINARY 21 1, IDENTIFIER 23 1, POW 25 1, IDENTIFIER 27 1, "
+            + "MODULUS 29 1, IDENTIFIER 31 1, SHIFT_RIGHT 33 2, IDENTIFIER 36 1, "
+            + "UNKNOWN 38 1, ASSIGN 39 1, IDENTIFIER 41 1, END 42 0"}
+  };
+
+  @Test
+  public void scansFrozenSequences() {
+    for (final String[] c : CASES) {
+      assertEquals(c[0], c[1], tokens(new Lexer(c[0]), false));
+    }
+  }
+
+  @Test
+  public void scansBuffersLikeStrings() {
+    for (final String[] c : CASES) {
+      assertEquals(c[0], c[1], tokens(new Lexer(CharBuffer.wrap(c[0])), false));
+    }
+  }
+
+  @Test
+  public void scansIntoRecycledTokens() {
+    for (final String[] c : CASES) {
+      assertEquals(c[0], c[1], tokens(new Lexer(c[0]), true));
+    }
+  }
+
+  @Test
+  public void keepsReturningEndAtEndOfInput() {
+    final Lexer lexer = new Lexer("x");
+    assertEquals(TokenKind.IDENTIFIER, lexer.scan().kind);
+    for (int i = 0; i < 3; i++) {
+      final Token token = lexer.scan();
+      assertEquals(TokenKind.END, token.kind);
+      assertEquals(1, token.offset);
+      assertEquals(0, token.length);
+    }
+  }
+
+  @Test
+  public void acceptStopsAtEndOfInput() {
+    final Lexer lexer = new Lexer("ab");
+    for (int i = 0; i < 4; i++) {
+      lexer.accept();
+      lexer.lookahead();
+    }
+    assertEquals(2, lexer.getContext().offset);
+    assertEquals(0, lexer.getContext().ch);
+  }
+
+  @Test
+  public void resetClearsTrivia() {
+    final Lexer lexer = new Lexer("x // one\n");
+    lexer.setTrivia(new Trivia());
+    while (lexer.scan().kind != TokenKind.END) {
+      // drain
+    }
+    assertEquals(1, lexer.getTrivia().size());
+    lexer.reset("y");
+    assertEquals(0, lexer.getTrivia().size());
+  }
+
+  @Test
+  public void triviaKeepsTreesUnchanged() {
+    for (final ProgramGenerator.Shape shape : ProgramGenerator.Shape.values()) {
+      final String source = new ProgramGenerator(7, shape).generate(32 * 1024);
+      final Lexer lexer = new Lexer(source);
+      lexer.setTrivia(new Trivia());
+      assertEquals(shape.toString(), Trees.dump(new Parser(new Lexer(source)).parse()),
+          Trees.dump(new Parser(lexer).parse()));
+    }
+  }
+
+  private static String tokens(Lexer lexer, boolean recycle) {
+    final StringBuilder out = new StringBuilder();
+    final Token recycled = new Token();
+    while (true) {
+      final Token token = recycle ? lexer.scan(recycled) : lexer.scan();
+      if (out.length() > 0) {
+        out.append(", ");
+      }
+      out.append(token.kind);
+      if (token.tag != 0) {
+        out.append(':').append(token.tag);
+      }
+      out.append(' ')
+          .append(token.offset).append(' ')
+          .append(token.length);
+      if (token.kind == TokenKind.END) {
+        return out.toString();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the values the lexer decodes for numeric literals with
+ * {@link Double#parseDouble}, bit for bit.
+ */
+public class NumberLiteralTest {
+
+  @Test
+  public void decodesEdgeCases() {
+    final String[] literals = {
+      "0", "0.0", "0.5", "1", "1.", ".5", ".0", ".05", ".005", "10", "0.1",
+      "0.3", "2.675", "123456.789", "9007199254740991", "9007199254740992",
+      "9007199254740993",
+      "900719925474099.1", "90071992547409.93", "1.0000000000000002",
+      "0.000000000000000000001", "12345678901234567890123",
+      "179769313486231570000000000000000000000000000000000000000000000000000"
+    };
+    for (final String literal : literals) {
+      assertDecodes(literal);
+    }
+  }
+
+  @Test
+  public void decodesRandomLiterals() {
+
+    final Random random = new Random(21);
+    final StringBuilder literal = new StringBuilder();
+
+    for (int i = 0; i < 100000; i++) {
+
+      literal.setLength(0);
+
+      final int integer = random.nextInt(20);
+      final int fraction = random.nextInt(20);
+
+      if (integer > 0) {
+        literal.append((char) ('1' + random.nextInt(9)));
+        for (int k = 1; k < integer; k++) {
+          literal.append((char) ('0' + random.nextInt(10)));
+        }
+      }
+
+      if (integer == 0 || random.nextBoolean()) {
+        literal.append('.');
+        for (int k = 0; k < fraction || literal.length() == 1; k++) {
+          literal.append((char) ('0' + random.nextInt(10)));
+        }
+      }
+
+      assertDecodes(literal.toString());
+
+    }
+
+  }
+
+  @Test
+  public void splitsLeadingZeros() {
+    final Lexer lexer = new Lexer("012");
+    Token token = lexer.scan();
+    assertEquals(0, token.value, 0);
+    assertEquals(1, token.length);
+    token = lexer.scan();
+    assertEquals(12, token.value, 0);
+    assertEquals(2, token.length);
+  }
+
+  @Test
+  public void splitsAtSecondPoint() {
+    final Lexer lexer = new Lexer(".5.3");
+    Token token = lexer.scan();
+    assertEquals(0.5, token.value, 0);
+    assertEquals(2, token.length);
+    token = lexer.scan();
+    assertEquals(0.3, token.value, 0);
+    assertEquals(2, token.length);
+  }
+
+  private static void assertDecodes(String literal) {
+    final Token token = new Lexer(literal).scan();
+    assertEquals(literal, TokenKind.NUMBER, token.kind);
+    assertEquals(literal, literal.length(), token.length);
+    assertEquals(literal, Double.doubleToLongBits(Double.parseDouble(literal)),
+        Double.doubleToLongBits(token.value));
+  }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares token streams updated by {@link TokenStream#relex} with a fresh
+ * lex of the edited source.
+ */
+public class TokenStreamTest {
+
+  private static final String[] SNIPPETS = {
+    "x", " ", "\n", "\n\n", "}", "{", "\"", "\"a\nb\"", "// c\n", "#", "i++",
+    "while", ".5.3", "1.5", ".", "7"
+  };
+
+  @Test
+  public void matchesFreshLexAfterRandomEdits() {
+
+    final Random random = new Random(12);
+    final StringBuilder text = new StringBuilder(
+        new ProgramGenerator(2, ProgramGenerator.Shape.MIXED).generate(16 * 1024));
+    final TokenStream stream = new TokenStream(new Lexer(text.toString()));
+
+    for (int i = 0; i < 300; i++) {
+      final int offset = random.nextInt(text.length() + 1);
+      final int removed = random.nextInt(Math.min(8, text.length() - offset) + 1);
+      final String inserted = random.nextBoolean()
+          ? SNIPPETS[random.nextInt(SNIPPETS.length)] : "";
+      text.replace(offset, offset + removed, inserted);
+      stream.relex(new Lexer(text.toString()), offset, removed, inserted.length());
+      assertSame(new TokenStream(new Lexer(text.toString())), stream);
+    }
+
+  }
+
+  @Test
+  public void relexesOnlyLinesAroundTheEdit() {
+
+    final StringBuilder text = new StringBuilder();
+
+    for (int i = 0; i < 100; i++) {
+      text.append("x").append(i).append(" = ").append(i).append("\n");
+    }
+
+    final TokenStream stream = new TokenStream(new Lexer(text.toString()));
+    final int offset = text.indexOf("x50");
+
+    text.insert(offset, "y + ");
+    stream.relex(new Lexer(text.toString()), offset, 0, 4);
+
+    // the line break before the edit touches it, so the line before the
+    // edited one is lexed again as well
+
+    assertSame(new TokenStream(new Lexer(text.toString())), stream);
+    assertEquals(10, stream.getDamageEnd() - stream.getDamageStart());
+
+  }
+
+  @Test
+  public void relexesUntilAnOpenedStringIsClosed() {
+
+    final StringBuilder text = new StringBuilder("a = 1\nb = 2\nc = \"d\"\n");
+    final TokenStream stream = new TokenStream(new Lexer(text.toString()));
+
+    text.insert(4, "\"");
+    stream.relex(new Lexer(text.toString()), 4, 0, 1);
+
+    assertSame(new TokenStream(new Lexer(text.toString())), stream);
+
+  }
+
+  private static void assertSame(TokenStream expected, TokenStream actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.kind(i), actual.kind(i));
+      assertEquals(expected.tag(i), actual.tag(i));
+      assertEquals(expected.offset(i), actual.offset(i));
+      assertEquals(expected.length(i), actual.length(i));
+      assertEquals(expected.value(i), actual.value(i), 0);
+    }
+  }
+
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Renders IR trees as text for comparison in tests. Every public getter of
+ * a node is followed, so two trees render the same exactly when they hold
+ * the same values, whatever the IR classes look like.
+ */
+final class Trees {
+
+  private static final Map<Class<?>, List<Method>> GETTERS = new IdentityHashMap<>();
+
+  private Trees() {
+  }
+
+  static String dump(Object node) {
+    final StringBuilder out = new StringBuilder();
+    dump(node, out, Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+    return out.toString();
+  }
+
+  private static void dump(Object value, StringBuilder out, Set<Object> path) {
+
+    if (value == null || value instanceof String || value instanceof Number
+        || value instanceof Boolean || value instanceof Enum) {
+      out.append(value);
+      return;
+    }
+
+    // back references, such as parents, are not followed
+
+    if (!path.add(value)) {
+      out.append('^');
+      return;
+    }
+
+    if (value instanceof Iterable) {
+      out.append('[');
+      for (final Object element : (Iterable<?>) value) {
+        dump(element, out, path);
+        out.append(',');
+      }
+      out.append(']');
+    } else {
+      out.append(value.getClass().getSimpleName()).append('{');
+      for (final Method getter : getters(value.getClass())) {
+        out.append(getter.getName()).append('=');
+        try {
+          dump(getter.invoke(value), out, path);
+        } catch (IllegalAccessException | InvocationTargetException ex) {
+          throw new IllegalStateException(ex);
+        }
+        out.append(' ');
+      }
+      out.append('}');
+    }
+
+    path.remove(value);
+
+  }
+
+  private static synchronized List<Method> getters(Class<?> type) {
+    List<Method> getters = GETTERS.get(type);
+    if (getters == null) {
+      getters = new ArrayList<>();
+      for (final Method method : type.getMethods()) {
+        final String name = method.getName();
+        if (method.getParameterTypes().length == 0
+            && method.getDeclaringClass() != Object.class
+            && !name.equals("getParent")
+            && (name.startsWith("get") || name.startsWith("is"))) {
+          getters.add(method);
+        }
+      }
+      Collections.sort(getters, new Comparator<Method>() {
+        @Override
+        public int compare(Method a, Method b) {
+          return a.getName().compareTo(b.getName());
+        }
+      });
+      GETTERS.put(type, getters);
+    }
+    return getters;
+  }
+
+}
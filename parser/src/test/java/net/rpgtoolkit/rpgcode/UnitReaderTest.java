@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2015, rpgtoolkit.net <help@rpgtoolkit.net>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package net.rpgtoolkit.rpgcode;
+
+import net.rpgtoolkit.blade.ir.CompilationUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Round-trips parsed units through the binary format of {@link UnitWriter}
+ * and {@link UnitReader}.
+ */
+public class UnitReaderTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void decodesEncodedUnits() throws IOException {
+    for (final ProgramGenerator.Shape shape : ProgramGenerator.Shape.values()) {
+      final Lexer lexer = new Lexer(new ProgramGenerator(3, shape).generate(32 * 1024));
+      final CompilationUnit unit = new Parser(lexer).parse();
+      final byte[] bytes = UnitWriter.encode(unit, lexer.getLineMap());
+      assertEquals(shape.toString(), Trees.dump(unit), Trees.dump(UnitReader.decode(bytes)));
+    }
+  }
+
+  @Test
+  public void reencodesDecodedUnitsUnchanged() throws IOException {
+
+    final Lexer lexer = new Lexer(
+        new ProgramGenerator(4, ProgramGenerator.Shape.FUNCTIONS).generate(32 * 1024));
+    final CompilationUnit unit = new Parser(lexer).parse();
+    final byte[] bytes = UnitWriter.encode(unit, lexer.getLineMap());
+
+    // units built while decoding carry the same ranges as parsed ones
+
+    final byte[] again = UnitWriter.encode(UnitReader.decode(bytes), lexer.getLineMap());
+
+    assertArrayEquals(bytes, again);
+
+  }
+
+  @Test
+  public void readsTreesBackUnchanged() throws IOException {
+
+    final FlatTree tree = tree(
+        new ProgramGenerator(5, ProgramGenerator.Shape.MIXED).generate(32 * 1024));
+    final byte[] bytes = UnitWriter.encode(tree);
+
+    // from a direct, read-only buffer as well as from a heap buffer
+
+    final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes).flip();
+
+    assertSameTree(tree, new UnitReader(ByteBuffer.wrap(bytes)).readTree());
+    assertSameTree(tree, new UnitReader(direct.asReadOnlyBuffer()).readTree());
+
+  }
+
+  @Test
+  public void readsConsecutiveUnitsFromFile() throws IOException {
+
+    final Lexer first = new Lexer(
+        new ProgramGenerator(1, ProgramGenerator.Shape.MIXED).generate(16 * 1024));
+    final Lexer second = new Lexer(
+        new ProgramGenerator(2, ProgramGenerator.Shape.CLASSES).generate(16 * 1024));
+    final CompilationUnit a = new Parser(first).parse();
+    final CompilationUnit b = new Parser(second).parse();
+    final File file = folder.newFile("units.bin");
+
+    try (final OutputStream out = new FileOutputStream(file)) {
+      final UnitWriter writer = new UnitWriter(out);
+      writer.write(a, first.getLineMap());
+      writer.write(b, second.getLineMap());
+    }
+
+    final UnitReader reader = UnitReader.open(file);
+
+    assertEquals(Trees.dump(a), Trees.dump(reader.read()));
+    assertEquals(Trees.dump(b), Trees.dump(reader.read()));
+    assertFalse(reader.hasNext());
+
+  }
+
+  @Test
+  public void rejectsDamagedInputWithIOException() {
+
+    final byte[] bytes = UnitWriter.encode(tree(
+        new ProgramGenerator(6, ProgramGenerator.Shape.FUNCTIONS).generate(8 * 1024)));
+    final Random random = new Random(25);
+
+    // truncated or flipped input may decode to some other unit, but must
+    // never fail any other way
+
+    for (int i = 0; i < 500; i++) {
+      byte[] damaged = bytes.clone();
+      if (i % 2 == 0) {
+        damaged = Arrays.copyOf(damaged, random.nextInt(damaged.length));
+      } else {
+        damaged[4 + random.nextInt(damaged.length - 4)] ^= (byte) (1 << random.nextInt(8));
+      }
+      try {
+        UnitReader.decode(damaged);
+      } catch (IOException ex) {
+        // expected
+      }
+    }
+
+  }
+
+  private static FlatTree tree(String source) {
+    final Lexer lexer = new Lexer(source);
+    return FlatTree.of(new Parser(lexer).parse(), lexer.getLineMap());
+  }
+
+  private static void assertSameTree(FlatTree expected, FlatTree actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.kind(i), actual.kind(i));
+      assertEquals(expected.tag(i), actual.tag(i));
+      assertEquals(expected.start(i), actual.start(i));
+      assertEquals(expected.end(i), actual.end(i));
+      assertEquals(expected.firstChild(i), actual.firstChild(i));
+      assertEquals(expected.nextSibling(i), actual.nextSibling(i));
+      switch (expected.kind(i)) {
+        case NUMBER:
+          assertEquals(expected.payload(i), actual.payload(i));
+          break;
+        case UNIT:
+        case IDENTIFIER:
+        case STRING:
+          assertEquals(expected.string(i), actual.string(i));
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+}